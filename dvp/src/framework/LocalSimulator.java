@@ -0,0 +1,295 @@
+package framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs a routing protocol on a simulated network, without the challenge server.
+ * <p>
+ * Every node of the {@link Scenario} gets its own protocol instance and a
+ * {@link SimulatedLinkLayer}. Like the server, every tick hands each node the
+ * packets its neighbours transmitted in the previous tick, with the cost of the
+ * link they came over, and then asks for its forwarding table. Packets are delivered
+ * over the links that are up at the tick they arrive, broadcasts (destination 0)
+ * to every neighbour. Nodes tick in order of address and receive packets in order
+ * of sender, so a run only depends on the protocol and the scenario.
+ * <p>
+ * A forwarding table is correct if it routes every reachable destination to a
+ * neighbour on a shortest path and has no entry for unreachable ones. After the
+ * start and after every tick with link changes, the simulator reports how many
+ * ticks it took until all tables were correct and stayed so.
+ * <p>
+ * Usage: LocalSimulator [options] scenario
+ * <ul>
+ *     <li>-protocol class: the protocol implementation, my_protocol.MyRoutingProtocol by default</li>
+ *     <li>-tables: prints the forwarding tables at the end of every phase</li>
+ * </ul>
+ */
+public class LocalSimulator {
+    private static final String DEFAULT_PROTOCOL = "my_protocol.MyRoutingProtocol";
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final Scenario scenario;
+    private final int nodeCount;
+    private final boolean printTables;
+
+    // per pair of nodes, indexed by address: the cost of their link, 0 if there
+    // never was one, and whether it is up
+    private final int[][] costs;
+    private final boolean[][] up;
+
+    // shortest path costs between all nodes over the links that are up
+    private final int[][] distances;
+
+    private final IRoutingProtocol[] protocols;
+    private final SimulatedLinkLayer[] linkLayers;
+
+    // packets transmitted by every node in the previous tick
+    private final List<List<Packet>> inFlight = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, ReflectiveOperationException {
+        String protocol = DEFAULT_PROTOCOL;
+        boolean printTables = false;
+        File file = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-protocol":
+                    protocol = args[++i];
+                    break;
+                case "-tables":
+                    printTables = true;
+                    break;
+                default:
+                    file = new File(args[i]);
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: LocalSimulator [-protocol class] [-tables] scenario");
+            return;
+        }
+
+        Class<? extends IRoutingProtocol> protocolImpl = Class.forName(protocol).asSubclass(IRoutingProtocol.class);
+        new LocalSimulator(new Scenario(file), protocolImpl, printTables).run();
+    }
+
+    /**
+     * Creates and initializes a protocol instance for every node of a scenario
+     *
+     * @param scenario     The network and its link changes
+     * @param protocolImpl The protocol implementation, with a constructor without arguments
+     * @param printTables  Whether to print the forwarding tables at the end of every phase
+     */
+    LocalSimulator(Scenario scenario, Class<? extends IRoutingProtocol> protocolImpl, boolean printTables)
+            throws ReflectiveOperationException {
+        this.scenario = scenario;
+        this.nodeCount = scenario.getNodeCount();
+        this.printTables = printTables;
+        costs = new int[nodeCount + 1][nodeCount + 1];
+        up = new boolean[nodeCount + 1][nodeCount + 1];
+        distances = new int[nodeCount + 1][nodeCount + 1];
+
+        protocols = new IRoutingProtocol[nodeCount + 1];
+        linkLayers = new SimulatedLinkLayer[nodeCount + 1];
+        for (int node = 0; node <= nodeCount; node++) {
+            inFlight.add(new ArrayList<>());
+        }
+        for (int node = 1; node <= nodeCount; node++) {
+            linkLayers[node] = new SimulatedLinkLayer(node);
+            protocols[node] = protocolImpl.getConstructor().newInstance();
+            protocols[node].init(linkLayers[node]);
+        }
+    }
+
+    /**
+     * Runs all ticks of the scenario and reports the convergence of every phase
+     */
+    void run() {
+        List<Scenario.Event> events = scenario.getEvents();
+        int nextEvent = 0;
+
+        int phaseStart = 0;
+        String phase = "start";
+        // first tick since which all tables have been correct, -1 if they are not
+        int correctSince = -1;
+        int wrongTables = 0;
+        int convergedPhases = 0;
+        int phases = 0;
+
+        for (int tick = 0; tick < scenario.getTickCount(); tick++) {
+            List<String> changes = new ArrayList<>();
+            for (; nextEvent < events.size() && events.get(nextEvent).tick == tick; nextEvent++) {
+                apply(events.get(nextEvent));
+                changes.add(events.get(nextEvent).toString());
+            }
+
+            if (tick == 0 || !changes.isEmpty()) {
+                if (tick > 0) {
+                    convergedPhases += report(phaseStart, phase, correctSince, wrongTables) ? 1 : 0;
+                    phases++;
+                }
+                phaseStart = tick;
+                phase = tick == 0 ? "start" : String.join(", ", changes);
+                correctSince = -1;
+                computeDistances();
+            }
+
+            tickNodes();
+
+            wrongTables = 0;
+            for (int node = 1; node <= nodeCount; node++) {
+                if (!isCorrect(node, protocols[node].getForwardingTable())) {
+                    wrongTables++;
+                }
+            }
+            if (wrongTables > 0) {
+                correctSince = -1;
+            } else if (correctSince == -1) {
+                correctSince = tick;
+            }
+        }
+        convergedPhases += report(phaseStart, phase, correctSince, wrongTables) ? 1 : 0;
+        phases++;
+
+        System.out.printf("[SIMULATOR] %d of %d phases converged in %d ticks%n",
+                convergedPhases, phases, scenario.getTickCount());
+    }
+
+    /**
+     * Applies a link change to the network
+     */
+    private void apply(Scenario.Event event) {
+        int from = event.from;
+        int to = event.to;
+        switch (event.action) {
+            case "link":
+                costs[from][to] = costs[to][from] = event.cost;
+                up[from][to] = up[to][from] = true;
+                break;
+            case "fail":
+                up[from][to] = up[to][from] = false;
+                break;
+            case "restore":
+                if (costs[from][to] == 0) {
+                    throw new IllegalStateException("Tick " + event.tick + ": no link to restore between "
+                            + from + " and " + to);
+                }
+                up[from][to] = up[to][from] = true;
+                break;
+            case "cost":
+                costs[from][to] = costs[to][from] = event.cost;
+                break;
+        }
+    }
+
+    /**
+     * Delivers the packets of the previous tick and runs one tick of every node
+     */
+    private void tickNodes() {
+        List<List<PacketWithLinkCost>> received = new ArrayList<>();
+        received.add(null);
+        for (int node = 1; node <= nodeCount; node++) {
+            received.add(new ArrayList<>());
+        }
+
+        for (int sender = 1; sender <= nodeCount; sender++) {
+            for (Packet packet : inFlight.get(sender)) {
+                int destination = packet.getDestinationAddress();
+                for (int receiver = 1; receiver <= nodeCount; receiver++) {
+                    if (up[sender][receiver] && (destination == 0 || destination == receiver)) {
+                        // every receiver gets its own copy, as if it came over the network
+                        received.get(receiver).add(new PacketWithLinkCost(copy(packet), costs[sender][receiver]));
+                    }
+                }
+            }
+        }
+
+        for (int node = 1; node <= nodeCount; node++) {
+            protocols[node].tick(received.get(node).toArray(new PacketWithLinkCost[0]));
+            inFlight.set(node, linkLayers[node].takeTransmitted());
+        }
+    }
+
+    private static Packet copy(Packet packet) {
+        if (packet.isRaw()) {
+            return new Packet(packet.getSourceAddress(), packet.getDestinationAddress(), packet.getRawData().clone());
+        }
+        DataTable data = packet.getDataTable();
+        DataTable copy = new DataTable(data.getNColumns());
+        for (int row = 0; row < data.getNRows(); row++) {
+            copy.addRow(data.getRow(row));
+        }
+        return new Packet(packet.getSourceAddress(), packet.getDestinationAddress(), copy);
+    }
+
+    /**
+     * Computes the shortest path costs between all nodes with Floyd-Warshall
+     */
+    private void computeDistances() {
+        for (int from = 1; from <= nodeCount; from++) {
+            for (int to = 1; to <= nodeCount; to++) {
+                distances[from][to] = from == to ? 0 : up[from][to] ? costs[from][to] : UNREACHABLE;
+            }
+        }
+        for (int via = 1; via <= nodeCount; via++) {
+            for (int from = 1; from <= nodeCount; from++) {
+                for (int to = 1; to <= nodeCount; to++) {
+                    if (distances[from][via] != UNREACHABLE && distances[via][to] != UNREACHABLE
+                            && distances[from][via] + distances[via][to] < distances[from][to]) {
+                        distances[from][to] = distances[from][via] + distances[via][to];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a forwarding table routes every reachable destination over a
+     * shortest path and has no route to unreachable ones
+     */
+    private boolean isCorrect(int node, Map<Integer, Integer> table) {
+        for (int destination = 1; destination <= nodeCount; destination++) {
+            if (destination == node) {
+                continue;
+            }
+            Integer nextHop = table.get(destination);
+            if (distances[node][destination] == UNREACHABLE) {
+                if (nextHop != null) {
+                    return false;
+                }
+            } else if (nextHop == null || nextHop < 1 || nextHop > nodeCount || !up[node][nextHop]
+                    || distances[nextHop][destination] == UNREACHABLE
+                    || costs[node][nextHop] + distances[nextHop][destination] != distances[node][destination]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prints the convergence of a phase
+     *
+     * @return Whether the phase converged
+     */
+    private boolean report(int phaseStart, String phase, int correctSince, int wrongTables) {
+        boolean converged = correctSince != -1;
+        if (converged) {
+            System.out.printf("[SIMULATOR] tick %d, %s: converged after %d ticks%n",
+                    phaseStart, phase, correctSince - phaseStart + 1);
+        } else {
+            System.out.printf("[SIMULATOR] tick %d, %s: not converged, %d of %d tables wrong%n",
+                    phaseStart, phase, wrongTables, nodeCount);
+        }
+
+        if (printTables) {
+            for (int node = 1; node <= nodeCount; node++) {
+                System.out.printf("[SIMULATOR]   node %d: %s%n", node,
+                        new TreeMap<>(protocols[node].getForwardingTable()));
+            }
+        }
+        return converged;
+    }
+}
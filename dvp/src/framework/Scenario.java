@@ -0,0 +1,187 @@
+package framework;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Network and timed link changes for the {@link LocalSimulator}, read from a text file.
+ * <p>
+ * Every line holds one command, and # starts a comment. Commands may come in any
+ * order; node numbers are checked against the nodes command once the whole file is
+ * read. Links are bidirectional and have the same cost in both directions.
+ * <ul>
+ *     <li>nodes N: the network consists of nodes 1 to N</li>
+ *     <li>ticks N: the number of ticks to simulate, 100 after the last event by default</li>
+ *     <li>link A B C: a link between A and B with cost C, up from the start</li>
+ *     <li>at T link A B C: adds a link at tick T, or brings it up with a new cost</li>
+ *     <li>at T fail A B: takes a link down at tick T</li>
+ *     <li>at T restore A B: brings a link back up at tick T with its last cost</li>
+ *     <li>at T cost A B C: changes the cost of a link at tick T, without bringing it up</li>
+ * </ul>
+ */
+class Scenario {
+    private static final int DEFAULT_TRAILING_TICKS = 100;
+
+    private int nodeCount = 0;
+    private int tickCount = -1;
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * Change of a link, applied at the start of a tick
+     */
+    static class Event {
+        final int tick;
+        final String action;
+        final int from;
+        final int to;
+        final int cost;
+
+        // line of the scenario file the event was read from
+        final int line;
+
+        Event(int tick, String action, int from, int to, int cost, int line) {
+            this.tick = tick;
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+            this.line = line;
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + from + " " + to + (action.equals("link") || action.equals("cost") ? " " + cost : "");
+        }
+    }
+
+    /**
+     * Reads a scenario file
+     *
+     * @param file The scenario file
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a line is not a valid command
+     */
+    Scenario(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            for (int number = 1; (line = reader.readLine()) != null; number++) {
+                int comment = line.indexOf('#');
+                String[] words = (comment == -1 ? line : line.substring(0, comment)).trim().split("\\s+");
+                if (words[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    parse(words, number);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(file + ":" + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        if (nodeCount == 0) {
+            throw new IllegalArgumentException(file + ": missing nodes command");
+        }
+        for (Event event : events) {
+            for (int node : new int[]{event.from, event.to}) {
+                if (node > nodeCount) {
+                    throw new IllegalArgumentException(file + ":" + event.line + ": Node out of range 1.."
+                            + nodeCount + ": " + node);
+                }
+            }
+        }
+
+        // events of the same tick keep the order of the file
+        events.sort(Comparator.comparingInt(event -> event.tick));
+        if (tickCount == -1) {
+            tickCount = (events.isEmpty() ? 0 : events.get(events.size() - 1).tick) + DEFAULT_TRAILING_TICKS;
+        }
+    }
+
+    private void parse(String[] words, int line) {
+        switch (words[0]) {
+            case "nodes":
+                expectWords(words, 2);
+                nodeCount = parsePositive(words[1]);
+                break;
+            case "ticks":
+                expectWords(words, 2);
+                tickCount = parsePositive(words[1]);
+                break;
+            case "link":
+                expectWords(words, 4);
+                events.add(parseEvent(0, words, 0, line));
+                break;
+            case "at":
+                if (words.length < 3) {
+                    throw new IllegalArgumentException("Expected at T action ...");
+                }
+                int tick = Integer.parseInt(words[1]);
+                if (tick < 0) {
+                    throw new IllegalArgumentException("Negative tick: " + tick);
+                }
+                expectWords(words, words[2].equals("link") || words[2].equals("cost") ? 6 : 5);
+                events.add(parseEvent(tick, words, 2, line));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + words[0]);
+        }
+    }
+
+    private Event parseEvent(int tick, String[] words, int start, int line) {
+        String action = words[start];
+        if (!action.equals("link") && !action.equals("fail") && !action.equals("restore") && !action.equals("cost")) {
+            throw new IllegalArgumentException("Unknown action: " + action);
+        }
+        int from = parseNode(words[start + 1]);
+        int to = parseNode(words[start + 2]);
+        if (from == to) {
+            throw new IllegalArgumentException("Link from node " + from + " to itself");
+        }
+        int cost = words.length > start + 3 ? parsePositive(words[start + 3]) : 0;
+        return new Event(tick, action, from, to, cost, line);
+    }
+
+    /**
+     * Parses a node number; the upper bound is checked once the nodes command is known
+     */
+    private static int parseNode(String word) {
+        int node = Integer.parseInt(word);
+        if (node < 1) {
+            throw new IllegalArgumentException("Node out of range: " + node);
+        }
+        return node;
+    }
+
+    private static int parsePositive(String word) {
+        int value = Integer.parseInt(word);
+        if (value <= 0) {
+            throw new IllegalArgumentException("Expected a positive number, got " + word);
+        }
+        return value;
+    }
+
+    private static void expectWords(String[] words, int count) {
+        if (words.length != count) {
+            throw new IllegalArgumentException("Expected " + (count - 1) + " arguments for " + String.join(" ", words));
+        }
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Gets the events sorted by tick
+     */
+    List<Event> getEvents() {
+        return events;
+    }
+}
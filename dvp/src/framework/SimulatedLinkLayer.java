@@ -0,0 +1,37 @@
+package framework;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Link layer of a node in the {@link LocalSimulator}, collecting the packets the
+ * protocol transmits instead of sending them to the challenge server.
+ */
+class SimulatedLinkLayer extends LinkLayer {
+    private final int address;
+    private final List<Packet> transmitted = new ArrayList<>();
+
+    SimulatedLinkLayer(int address) {
+        super(null);
+        this.address = address;
+    }
+
+    @Override
+    public int getOwnAddress() {
+        return address;
+    }
+
+    @Override
+    public void transmit(Packet packet) {
+        transmitted.add(packet);
+    }
+
+    /**
+     * Removes and returns the packets transmitted since the last call
+     */
+    List<Packet> takeTransmitted() {
+        List<Packet> packets = new ArrayList<>(transmitted);
+        transmitted.clear();
+        return packets;
+    }
+}
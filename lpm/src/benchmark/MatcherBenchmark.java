@@ -0,0 +1,170 @@
+package benchmark;
+
+import lpm.Backend;
+import lpm.LongestPrefixMatcher;
+
+import java.lang.ref.Reference;
+
+/**
+ * Benchmark comparing the LongestPrefixMatcher backends on the same workload.
+ * <p>
+ * For every backend it measures the time of addRoute plus finalizeRoutes, the
+ * throughput of single and batched lookups on uniform and skewed address streams,
+ * and the heap retained per route. Every measurement is preceded by warmup
+ * iterations and reported as the mean and standard deviation of the measured ones.
+ * <p>
+ * Usage: MatcherBenchmark [routes] [lookups] [backend...]
+ */
+public class MatcherBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final int BATCH_SIZE = 64;
+    private static final int PORT_COUNT = 64;
+    private static final long SEED = 20190710;
+
+    private final Workload workload;
+    private final int[] uniform;
+    private final int[] skewed;
+
+    // sum of all lookup results, printed at the end so no lookup can be optimized away
+    private long blackhole = 0;
+
+    public static void main(String[] args) {
+        int routeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookupCount = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+
+        Backend[] backends = Backend.values();
+        if (args.length > 2) {
+            backends = new Backend[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                backends[i - 2] = Backend.valueOf(args[i]);
+            }
+        }
+
+        MatcherBenchmark benchmark = new MatcherBenchmark(routeCount, lookupCount);
+        System.out.printf("%d routes, %d lookups per iteration, %d per batch%n%n", routeCount, lookupCount, BATCH_SIZE);
+        for (Backend backend : backends) {
+            benchmark.run(backend);
+        }
+        System.out.println("(checksum " + benchmark.blackhole + ")");
+    }
+
+    public MatcherBenchmark(int routeCount, int lookupCount) {
+        workload = new Workload(routeCount, PORT_COUNT, SEED);
+        uniform = workload.uniformAddresses(lookupCount);
+        skewed = workload.skewedAddresses(lookupCount);
+    }
+
+    /**
+     * Runs all measurements for a single backend and prints the results
+     */
+    public void run(Backend backend) {
+        System.out.println(backend);
+
+        double[] buildTimes = new double[MEASURE_ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < MEASURE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            build(backend);
+            if (i >= 0) {
+                buildTimes[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        print("build", buildTimes, "ms");
+
+        System.out.printf("  %-22s %10.1f bytes/route%n", "retained heap", retainedBytes(backend) / workload.size());
+
+        LongestPrefixMatcher lpm = build(backend);
+        print("single, uniform", measure(lpm, uniform, false), "M lookups/s");
+        print("batched, uniform", measure(lpm, uniform, true), "M lookups/s");
+        print("single, skewed", measure(lpm, skewed, false), "M lookups/s");
+        print("batched, skewed", measure(lpm, skewed, true), "M lookups/s");
+        System.out.println();
+    }
+
+    /**
+     * Adds all routes of the workload to a new matcher and finalizes it
+     */
+    private LongestPrefixMatcher build(Backend backend) {
+        LongestPrefixMatcher lpm = new LongestPrefixMatcher(backend);
+        for (int route = 0; route < workload.size(); route++) {
+            lpm.addRoute(workload.ip(route), workload.prefixLength(route), workload.port(route));
+        }
+        lpm.finalizeRoutes();
+        return lpm;
+    }
+
+    /**
+     * Measures the lookup throughput over an address stream
+     *
+     * @return The lookups per second of each measured iteration, in millions
+     */
+    private double[] measure(LongestPrefixMatcher lpm, int[] addresses, boolean batched) {
+        int[] batch = new int[BATCH_SIZE];
+        int[] ports = new int[BATCH_SIZE];
+        double[] results = new double[MEASURE_ITERATIONS];
+
+        for (int i = -WARMUP_ITERATIONS; i < MEASURE_ITERATIONS; i++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            if (batched) {
+                for (int offset = 0; offset < addresses.length; offset += BATCH_SIZE) {
+                    int count = Math.min(BATCH_SIZE, addresses.length - offset);
+                    System.arraycopy(addresses, offset, batch, 0, count);
+                    lpm.lookupBatch(batch, ports, count);
+                    for (int j = 0; j < count; j++) {
+                        sum += ports[j];
+                    }
+                }
+            } else {
+                for (int address : addresses) {
+                    sum += lpm.lookup(address);
+                }
+            }
+            long time = System.nanoTime() - start;
+
+            blackhole += sum;
+            if (i >= 0) {
+                results[i] = addresses.length * 1e3 / time;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Estimates the heap retained by a finalized matcher from the used heap
+     * before and after building it
+     */
+    private double retainedBytes(Backend backend) {
+        long before = usedHeap();
+        LongestPrefixMatcher lpm = build(backend);
+        long after = usedHeap();
+        Reference.reachabilityFence(lpm);
+        return after - before;
+    }
+
+    /**
+     * Gets the used heap after collecting garbage
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Prints the mean and standard deviation of a measurement
+     */
+    private static void print(String name, double[] values, String unit) {
+        double mean = 0;
+        for (double value : values) {
+            mean += value / values.length;
+        }
+        double variance = 0;
+        for (double value : values) {
+            variance += (value - mean) * (value - mean) / values.length;
+        }
+        System.out.printf("  %-22s %10.1f +- %.1f %s%n", name, mean, Math.sqrt(variance), unit);
+    }
+}
@@ -0,0 +1,206 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic routing table with a BGP-like prefix length distribution, together
+ * with generators for the addresses to look up.
+ * <p>
+ * Routes are clustered: most of them are more-specifics of a smaller set of
+ * aggregate blocks, like the allocations in a real table.
+ */
+public class Workload {
+    // approximate share of each prefix length (index) in a full IPv4 table, per mille
+    static final int[] LENGTH_WEIGHTS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 2, 3, 4,
+            15, 8, 15, 28, 40, 45, 100, 100, 570, 1, 1, 1, 1, 1, 1, 1, 1
+    };
+
+    // number of routes sharing an aggregate block on average
+    private static final int ROUTES_PER_AGGREGATE = 16;
+
+    // exponent of the Zipf distribution used for skewed address streams
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    private final Random random;
+    private final int[] lengthWeights;
+    private final int[] ips;
+    private final byte[] prefixLengths;
+    private final int[] ports;
+
+    // cumulative Zipf weights over the routes and the route of every rank,
+    // created by the first call to skewedAddresses
+    private double[] cumulative;
+    private int[] routeOfRank;
+
+    /**
+     * Generates a routing table with a BGP-like prefix length distribution
+     *
+     * @param routeCount The number of routes to generate
+     * @param portCount  The number of distinct ports the routes point to
+     * @param seed       The seed of the random generator, so workloads can be repeated
+     */
+    public Workload(int routeCount, int portCount, long seed) {
+        this(routeCount, portCount, seed, LENGTH_WEIGHTS);
+    }
+
+    /**
+     * Generates a routing table
+     *
+     * @param routeCount    The number of routes to generate
+     * @param portCount     The number of distinct ports the routes point to
+     * @param seed          The seed of the random generator, so workloads can be repeated
+     * @param lengthWeights The relative share of each prefix length, indexed by length 0 to 32
+     */
+    public Workload(int routeCount, int portCount, long seed, int[] lengthWeights) {
+        if (lengthWeights.length != 33 || Arrays.stream(lengthWeights).anyMatch(weight -> weight < 0)
+                || Arrays.stream(lengthWeights).sum() == 0) {
+            throw new IllegalArgumentException("Expected 33 non-negative weights that are not all zero");
+        }
+        random = new Random(seed);
+        this.lengthWeights = lengthWeights;
+        ips = new int[routeCount];
+        prefixLengths = new byte[routeCount];
+        ports = new int[routeCount];
+
+        // aggregate blocks between /8 and /20 that most routes fall into
+        int[] aggregates = new int[Math.max(1, routeCount / ROUTES_PER_AGGREGATE)];
+        byte[] aggregateLengths = new byte[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregateLengths[i] = (byte) (8 + random.nextInt(13));
+            aggregates[i] = unicastAddress() & mask(aggregateLengths[i]);
+        }
+
+        for (int i = 0; i < routeCount; i++) {
+            int length = sampleLength();
+            int aggregate = random.nextInt(aggregates.length);
+
+            // place the route inside an aggregate if it is long enough, anywhere otherwise
+            int ip = unicastAddress();
+            if (length >= aggregateLengths[aggregate]) {
+                ip = aggregates[aggregate] | ip & ~mask(aggregateLengths[aggregate]);
+            }
+
+            ips[i] = ip & mask(length);
+            prefixLengths[i] = (byte) length;
+            ports[i] = random.nextInt(portCount);
+        }
+    }
+
+    public int size() {
+        return ips.length;
+    }
+
+    public int ip(int route) {
+        return ips[route];
+    }
+
+    public byte prefixLength(int route) {
+        return prefixLengths[route];
+    }
+
+    public int port(int route) {
+        return ports[route];
+    }
+
+    /**
+     * Generates addresses spread uniformly over the whole address space
+     *
+     * @param count The number of addresses
+     * @return The addresses in integer representation
+     */
+    public int[] uniformAddresses(int count) {
+        int[] addresses = new int[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = random.nextInt();
+        }
+        return addresses;
+    }
+
+    /**
+     * Generates addresses inside the routed prefixes, where the popularity of the
+     * prefixes follows a Zipf distribution, like destinations of real traffic. The
+     * popularity of the prefixes is the same for all calls.
+     *
+     * @param count The number of addresses
+     * @return The addresses in integer representation
+     */
+    public int[] skewedAddresses(int count) {
+        if (cumulative == null) {
+            // cumulative Zipf weights over the routes, the most popular route first
+            cumulative = new double[ips.length];
+            double sum = 0;
+            for (int rank = 0; rank < ips.length; rank++) {
+                sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+                cumulative[rank] = sum;
+            }
+
+            // ranks are assigned to the routes in a random order
+            routeOfRank = new int[ips.length];
+            for (int i = 0; i < routeOfRank.length; i++) {
+                int j = random.nextInt(i + 1);
+                routeOfRank[i] = routeOfRank[j];
+                routeOfRank[j] = i;
+            }
+        }
+
+        double sum = cumulative[cumulative.length - 1];
+        int[] addresses = new int[count];
+        for (int i = 0; i < count; i++) {
+            int rank = search(cumulative, random.nextDouble() * sum);
+            int route = routeOfRank[rank];
+            addresses[i] = ips[route] | random.nextInt() & ~mask(prefixLengths[route]);
+        }
+        return addresses;
+    }
+
+    /**
+     * Picks a prefix length according to the length weights
+     */
+    private int sampleLength() {
+        int total = 0;
+        for (int weight : lengthWeights) {
+            total += weight;
+        }
+
+        int sample = random.nextInt(total);
+        for (int length = 0; ; length++) {
+            sample -= lengthWeights[length];
+            if (sample < 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Picks a random address in 1.0.0.0 - 223.255.255.255
+     */
+    private int unicastAddress() {
+        return (1 + random.nextInt(223)) << 24 | random.nextInt(1 << 24);
+    }
+
+    /**
+     * Finds the first index whose cumulative weight exceeds the given value
+     */
+    private static int search(double[] cumulative, double value) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] > value) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets the network mask of a prefix length
+     */
+    static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << 32 - prefixLength;
+    }
+}
@@ -0,0 +1,211 @@
+package benchmark;
+
+import lpm.ReferenceMatcher;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes routes.txt, lookup.txt and expected_output.txt for a synthetic workload,
+ * in the format the Framework reads, at any scale.
+ * <p>
+ * The routes come from a {@link Workload}. The expected ports are computed by a
+ * {@link ReferenceMatcher}, so the files can check every backend. Lookups are
+ * generated and written in chunks, so their number is only limited by disk space.
+ * <p>
+ * Usage: WorkloadGenerator [options] [directory]
+ * <ul>
+ *     <li>-routes N: number of routes, 1M by default</li>
+ *     <li>-lookups N: number of lookups, 100M by default</li>
+ *     <li>-lengths bgp|uniform|L:W,...: prefix length distribution, BGP-like by
+ *     default, uniform over /8 to /32, or weights W for lengths L</li>
+ *     <li>-addresses uniform|skewed: lookups spread over the whole address space,
+ *     or inside the routes with Zipf popularity (default)</li>
+ *     <li>-repeat F: share of lookups repeating one of the last addresses, 0 by default</li>
+ *     <li>-ports N: number of distinct ports, 64 by default</li>
+ *     <li>-seed N: seed of the random generator</li>
+ * </ul>
+ */
+public class WorkloadGenerator {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // number of recent addresses a repeated lookup picks from
+    private static final int RECENT_ADDRESSES = 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private int routeCount = 1_000_000;
+    private long lookupCount = 100_000_000;
+    private int[] lengthWeights = Workload.LENGTH_WEIGHTS;
+    private boolean skewed = true;
+    private double repeatShare = 0;
+    private int portCount = 64;
+    private long seed = 20190710;
+
+    public static void main(String[] args) throws IOException {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        File directory = new File(".");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-routes":
+                    generator.routeCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-lookups":
+                    generator.lookupCount = Long.parseLong(args[++i]);
+                    break;
+                case "-lengths":
+                    generator.lengthWeights = parseLengths(args[++i]);
+                    break;
+                case "-addresses":
+                    generator.skewed = parseAddresses(args[++i]);
+                    break;
+                case "-repeat":
+                    generator.repeatShare = Double.parseDouble(args[++i]);
+                    break;
+                case "-ports":
+                    generator.portCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    generator.seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    directory = new File(args[i]);
+            }
+        }
+        generator.generate(directory);
+    }
+
+    /**
+     * Writes the three files into a directory
+     */
+    public void generate(File directory) throws IOException {
+        long start = System.nanoTime();
+        Workload workload = new Workload(routeCount, portCount, seed, lengthWeights);
+        ReferenceMatcher reference = new ReferenceMatcher();
+
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(new File(directory, "routes.txt")), WRITE_BUFFER_SIZE)) {
+            // routes with the same prefix would make the expected ports depend on their order
+            Set<Long> written = new HashSet<>();
+            byte[] line = new byte[32];
+            for (int i = 0; i < workload.size(); i++) {
+                if (!written.add((long) workload.ip(i) << 8 | workload.prefixLength(i))) {
+                    continue;
+                }
+                reference.addRoute(workload.ip(i), workload.prefixLength(i), workload.port(i));
+
+                int length = appendIP(line, 0, workload.ip(i));
+                line[length++] = '/';
+                length = appendInt(line, length, workload.prefixLength(i));
+                line[length++] = '\t';
+                length = appendInt(line, length, workload.port(i));
+                line[length++] = '\n';
+                out.write(line, 0, length);
+            }
+        }
+        reference.finalizeRoutes();
+
+        Random random = new Random(seed + 1);
+        int[] recent = new int[RECENT_ADDRESSES];
+        long generated = 0;
+        try (OutputStream lookups = new BufferedOutputStream(
+                new FileOutputStream(new File(directory, "lookup.txt")), WRITE_BUFFER_SIZE);
+             OutputStream outputs = new BufferedOutputStream(
+                     new FileOutputStream(new File(directory, "expected_output.txt")), WRITE_BUFFER_SIZE)) {
+            byte[] line = new byte[16];
+
+            while (generated < lookupCount) {
+                int count = (int) Math.min(CHUNK_SIZE, lookupCount - generated);
+                int[] addresses = skewed ? workload.skewedAddresses(count) : workload.uniformAddresses(count);
+
+                for (int i = 0; i < count; i++, generated++) {
+                    int ip = addresses[i];
+                    if (generated >= RECENT_ADDRESSES && random.nextDouble() < repeatShare) {
+                        ip = recent[random.nextInt(RECENT_ADDRESSES)];
+                    }
+                    recent[(int) (generated % RECENT_ADDRESSES)] = ip;
+
+                    int length = appendIP(line, 0, ip);
+                    line[length++] = '\n';
+                    lookups.write(line, 0, length);
+
+                    length = appendInt(line, 0, reference.lookup(ip));
+                    line[length++] = '\n';
+                    outputs.write(line, 0, length);
+                }
+            }
+        }
+
+        System.out.printf("Wrote %d routes and %d lookups to %s in %.1f s%n", reference.size(),
+                generated, directory, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Parses a prefix length distribution: bgp, uniform or a list of length:weight pairs
+     */
+    private static int[] parseLengths(String value) {
+        if (value.equals("bgp")) {
+            return Workload.LENGTH_WEIGHTS;
+        }
+
+        int[] weights = new int[33];
+        if (value.equals("uniform")) {
+            Arrays.fill(weights, 8, 33, 1);
+            return weights;
+        }
+        for (String pair : value.split(",")) {
+            String[] parts = pair.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected length:weight, got " + pair);
+            }
+            weights[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+        }
+        return weights;
+    }
+
+    private static boolean parseAddresses(String value) {
+        if (!value.equals("uniform") && !value.equals("skewed")) {
+            throw new IllegalArgumentException("Expected uniform or skewed, got " + value);
+        }
+        return value.equals("skewed");
+    }
+
+    /**
+     * Writes an IP in dotted notation into a buffer
+     *
+     * @return The position after the IP
+     */
+    private static int appendIP(byte[] buffer, int position, int ip) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            position = appendInt(buffer, position, ip >>> shift & 0xff);
+            if (shift > 0) {
+                buffer[position++] = '.';
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Writes a number in decimal notation into a buffer
+     *
+     * @return The position after the number
+     */
+    private static int appendInt(byte[] buffer, int position, int value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int end = position + 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            end++;
+        }
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,166 @@
+package framework;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary versions of the route, lookup and output files.
+ * <p>
+ * Routes are packed as 9-byte records holding the IP (4 bytes), the prefix length
+ * (1 byte) and the port number (4 bytes). Lookup and output files are plain sequences
+ * of 4-byte IPs and port numbers. IPv6 routes are 21-byte records holding the IP
+ * (16 bytes), the prefix length and the port number, and IPv6 lookups are 16-byte
+ * IPs. All values are big-endian and there is no header,
+ * so the number of records follows from the file size.
+ * <p>
+ * A converted file is written next to its target first and then moved over it, so
+ * a failed or interrupted conversion never leaves a truncated file that looks up
+ * to date.
+ */
+public class BinaryFiles {
+    public static final int ROUTE_RECORD_SIZE = 9;
+    public static final int INT_RECORD_SIZE = 4;
+    public static final int ROUTE6_RECORD_SIZE = 21;
+    public static final int IP6_RECORD_SIZE = 16;
+
+    /**
+     * Converts a text route file (ip/length, a tab and the port on each line)
+     * into packed route records
+     */
+    public static void convertRoutes(File textFile, File binaryFile) throws IOException {
+        try (TextParser parser = new TextParser(textFile)) {
+            writeAtomically(binaryFile, out -> {
+                while (parser.hasNext()) {
+                    out.writeInt(parser.nextIP());
+                    parser.expect('/');
+                    out.writeByte(parser.nextPrefixLength(32));
+                    parser.expect('\t');
+                    out.writeInt(parser.nextInt());
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts a text lookup file (an IP on each line) into raw 4-byte IPs
+     */
+    public static void convertLookups(File textFile, File binaryFile) throws IOException {
+        try (TextParser parser = new TextParser(textFile)) {
+            writeAtomically(binaryFile, out -> {
+                while (parser.hasNext()) {
+                    out.writeInt(parser.nextIP());
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts a text IPv6 route file (ip/length, a tab and the port on each line)
+     * into packed route records
+     */
+    public static void convertRoutes6(File textFile, File binaryFile) throws IOException {
+        long[] address = new long[2];
+        try (TextParser parser = new TextParser(textFile)) {
+            writeAtomically(binaryFile, out -> {
+                while (parser.hasNext()) {
+                    parser.nextIP6(address);
+                    out.writeLong(address[0]);
+                    out.writeLong(address[1]);
+                    parser.expect('/');
+                    out.writeByte(parser.nextPrefixLength(128));
+                    parser.expect('\t');
+                    out.writeInt(parser.nextInt());
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts a text IPv6 lookup file (an IP on each line) into raw 16-byte IPs
+     */
+    public static void convertLookups6(File textFile, File binaryFile) throws IOException {
+        long[] address = new long[2];
+        try (TextParser parser = new TextParser(textFile)) {
+            writeAtomically(binaryFile, out -> {
+                while (parser.hasNext()) {
+                    parser.nextIP6(address);
+                    out.writeLong(address[0]);
+                    out.writeLong(address[1]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts a text output file (a port number on each line) into raw 4-byte ints
+     */
+    public static void convertOutputs(File textFile, File binaryFile) throws IOException {
+        try (TextParser parser = new TextParser(textFile)) {
+            writeAtomically(binaryFile, out -> {
+                while (parser.hasNext()) {
+                    out.writeInt(parser.nextInt());
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a binary file to a temporary file in the same directory, and then
+     * moves it over the target in one step
+     *
+     * @param binaryFile The file to write
+     * @param writer     Writes the records of the file
+     */
+    private static void writeAtomically(File binaryFile, RecordWriter writer) throws IOException {
+        Path target = binaryFile.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            writer.write(out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the records of a binary file
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Maps a binary file read-only into memory. Files larger than a single mapping
+     * are split into several buffers, each holding only whole records.
+     *
+     * @param file       The file to map
+     * @param recordSize The size of the records in the file
+     * @return The mapped buffers, in file order
+     */
+    public static List<ByteBuffer> map(File file, int recordSize) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size() - channel.size() % recordSize;
+            long maxMapping = Integer.MAX_VALUE / recordSize * recordSize;
+            for (long position = 0; position < size; position += maxMapping) {
+                buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(maxMapping, size - position)));
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Checks whether a binary file has to be (re)generated from its text version
+     */
+    public static boolean isOutdated(File textFile, File binaryFile) {
+        return !binaryFile.exists() || binaryFile.lastModified() < textFile.lastModified();
+    }
+}
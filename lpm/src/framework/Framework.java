@@ -15,111 +15,902 @@
 
 package framework;
 
+import lpm.Backend;
 import lpm.LongestPrefixMatcher;
+import lpm.LongestPrefixMatcher6;
+import lpm.ReferenceMatcher;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Framework {
     public static final File ROUTES_FILE = new File("routes.txt");
     public static final File LOOKUP_FILE = new File("lookup.txt");
     public static final File OUTPUT_FILE = new File("expected_output.txt");
+    public static final File ROUTES_BINARY_FILE = new File("routes.bin");
+    public static final File LOOKUP_BINARY_FILE = new File("lookup.bin");
+    public static final File OUTPUT_BINARY_FILE = new File("expected_output.bin");
+    public static final File SNAPSHOT_FILE = new File("routes.snapshot");
+    public static final File ROUTES6_FILE = new File("routes6.txt");
+    public static final File LOOKUP6_FILE = new File("lookup6.txt");
+    public static final File OUTPUT6_FILE = new File("expected_output6.txt");
+    public static final File ROUTES6_BINARY_FILE = new File("routes6.bin");
+    public static final File LOOKUP6_BINARY_FILE = new File("lookup6.bin");
+    public static final File OUTPUT6_BINARY_FILE = new File("expected_output6.bin");
+
+    // number of addresses passed to each lookupBatch call when measuring throughput
+    private static final int BATCH_SIZE = 64;
+
+    // number of addresses from the start of the lookup file used to measure throughput
+    private static final int THROUGHPUT_SAMPLE = 1 << 20;
+
+    // minimum number of lookups per measurement, the sample is replayed until reached
+    private static final int THROUGHPUT_LOOKUPS = 10_000_000;
+
+    // number of lookups compared against the reference matcher at a time
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // size of the ranges of the text files that are parsed by each task in parallel mode
+    private static final long PARALLEL_RANGE_BYTES = 1 << 20;
+
+    // number of mismatches printed in parallel mode, the rest are only counted
+    private static final int MAX_REPORTED_ERRORS = 100;
 
     private final LongestPrefixMatcher lpm;
+    private final LongestPrefixMatcher6 lpm6 = new LongestPrefixMatcher6();
+
+    // whether the routes are aggregated when they are finalized
+    private boolean aggregate = false;
 
     public static void main(String[] args) {
-        Framework client = new Framework();
-        
-        client.readRoutes(ROUTES_FILE);
+        // arguments: an optional backend name, "-parallel" to check lookups on all cores,
+        // "-binary" to use the binary files, converting the text files if needed, and
+        // "-ipv6" to check the IPv6 files instead, "-snapshot" to load the routes from
+        // a snapshot image, which is written first if it is missing or outdated, and
+        // "-aggregate" to aggregate the routes before building the lookup structure, and
+        // "-stats" to print lookup statistics and table sizes after checking the lookups, and
+        // "-reference" to check the lookups against a ReferenceMatcher instead of expected_output.txt, and
+        // "-throughput" to measure the lookups per second once all lookups are correct
+        Backend backend = null;
+        boolean parallel = false;
+        boolean binary = false;
+        boolean ipv6 = false;
+        boolean snapshot = false;
+        boolean aggregate = false;
+        boolean stats = false;
+        boolean reference = false;
+        boolean throughput = false;
+        for (String arg : args) {
+            if (arg.equals("-parallel")) {
+                parallel = true;
+            } else if (arg.equals("-binary")) {
+                binary = true;
+            } else if (arg.equals("-ipv6")) {
+                ipv6 = true;
+            } else if (arg.equals("-snapshot")) {
+                snapshot = true;
+            } else if (arg.equals("-aggregate")) {
+                aggregate = true;
+            } else if (arg.equals("-stats")) {
+                stats = true;
+            } else if (arg.equals("-reference")) {
+                reference = true;
+            } else if (arg.equals("-throughput")) {
+                throughput = true;
+            } else {
+                backend = backendOf(arg);
+            }
+        }
+
+        // reject the combinations in which a flag would be silently ignored
+        if (binary && (parallel || reference)) {
+            exitWithUsage("-parallel and -reference only work with the text files, not with -binary");
+        }
+        if (parallel && reference) {
+            exitWithUsage("-reference checks the lookups on one thread, it cannot be combined with -parallel");
+        }
+        if (snapshot && aggregate) {
+            exitWithUsage("a loaded snapshot is not aggregated, -aggregate cannot be combined with -snapshot");
+        }
+        if (ipv6 && (parallel || snapshot || aggregate || stats || reference)) {
+            exitWithUsage("-ipv6 only supports -binary and -throughput");
+        }
+
+        Framework client = backend != null ? new Framework(backend) : new Framework();
+        client.aggregate = aggregate;
         
-        if (client.readLookup(LOOKUP_FILE, OUTPUT_FILE)) {
+        boolean success;
+        if (ipv6) {
+            if (binary) {
+                if (!convertToBinary6()) {
+                    return;
+                }
+                client.readRoutes6Binary(ROUTES6_BINARY_FILE);
+                success = client.readLookup6Binary(LOOKUP6_BINARY_FILE, OUTPUT6_BINARY_FILE);
+            } else {
+                client.readRoutes6(ROUTES6_FILE);
+                success = client.readLookup6(LOOKUP6_FILE, OUTPUT6_FILE);
+            }
+            if (success) {
+                System.out.println("All lookups done successfully.");
+                if (throughput) {
+                    client.reportThroughput6(binary ? LOOKUP6_BINARY_FILE : LOOKUP6_FILE, binary);
+                }
+            }
+            return;
+        }
+
+        if (binary && !convertToBinary()) {
+            return;
+        }
+
+        if (snapshot && !BinaryFiles.isOutdated(ROUTES_FILE, SNAPSHOT_FILE)) {
+            client.loadSnapshot(SNAPSHOT_FILE);
+        } else {
+            if (binary) {
+                client.readRoutesBinary(ROUTES_BINARY_FILE);
+            } else {
+                client.readRoutes(ROUTES_FILE);
+            }
+            if (snapshot) {
+                client.saveSnapshot(SNAPSHOT_FILE);
+            }
+        }
+
+        if (stats) {
+            client.lpm.setStatsRecording(true);
+        }
+        if (reference) {
+            success = client.diffAgainstReference(ROUTES_FILE, LOOKUP_FILE);
+        } else if (binary) {
+            success = client.readLookupBinary(LOOKUP_BINARY_FILE, OUTPUT_BINARY_FILE);
+        } else {
+            success = parallel
+                    ? client.readLookupParallel(LOOKUP_FILE, OUTPUT_FILE)
+                    : client.readLookup(LOOKUP_FILE, OUTPUT_FILE);
+        }
+        if (stats) {
+            client.printStats();
+        }
+        if (success) {
             System.out.println("All lookups done successfully.");
+            if (throughput) {
+                client.reportThroughput(binary ? LOOKUP_BINARY_FILE : LOOKUP_FILE, binary);
+            }
         }
     }
 
+    /**
+     * Gets the backend with the given name, or exits with the usage if there is none
+     */
+    private static Backend backendOf(String name) {
+        for (Backend backend : Backend.values()) {
+            if (backend.name().equals(name)) {
+                return backend;
+            }
+        }
+        exitWithUsage("unknown argument: " + name);
+        return null;
+    }
+
+    /**
+     * Prints a problem with the arguments and the valid arguments, and exits with status 1
+     */
+    private static void exitWithUsage(String problem) {
+        System.err.println(problem);
+        System.err.println("usage: Framework [backend] [-parallel] [-binary] [-ipv6] [-snapshot] [-aggregate]"
+                + " [-stats] [-reference] [-throughput]");
+        System.err.println("backends: " + Arrays.toString(Backend.values()));
+        System.exit(1);
+    }
+
     public Framework() {
         lpm = new LongestPrefixMatcher();
     }
 
+    public Framework(Backend backend) {
+        lpm = new LongestPrefixMatcher(backend);
+    }
+
     /**
-     * Reads IPs to look up from lookup.bin and passes them to this.lookup
+     * Reads IPs to look up from lookup.txt and passes them to this.lookup. Reading,
+     * parsing, lookups and comparing run as separate stages of a pipeline.
      */
     private boolean readLookup(File lookupFile, File outputFile) {
-        try (BufferedReader brLookup = new BufferedReader(new FileReader(lookupFile));
-             BufferedReader brOutput = new BufferedReader(new FileReader(outputFile))) {
+        try {
+            return new LookupPipeline(lpm).run(lookupFile, outputFile);
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile + " or " + outputFile);
+            return false;
+        }
+    }
 
-            String lineLookup, lineOutput;
-            StringBuilder sb = new StringBuilder();
+    /**
+     * Splits lookup.txt and expected_output.txt into ranges of whole lines, parses
+     * every range on the common fork-join pool with its own parser, looks up the IPs
+     * of the lookup ranges in the same tasks, and then compares the results line by
+     * line. Unlike readLookup, all mismatches are counted.
+     */
+    private boolean readLookupParallel(File lookupFile, File outputFile) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        // the first MAX_REPORTED_ERRORS mismatches, the rest are only counted
+        List<String> errors = new ArrayList<>();
+        long errorCount = 0;
+        long lookups = 0;
+        long start = System.nanoTime();
 
-            List<Integer> input = new ArrayList<>();
-            List<Integer> expectedOutput = new ArrayList<>();
-            while ((lineLookup = brLookup.readLine()) != null && (lineOutput = brOutput.readLine()) != null) {
-                Integer result = lpm.lookup(this.parseIP(lineLookup));
-                Integer expected = Integer.parseInt(lineOutput);
+        try (FileChannel lookupChannel = FileChannel.open(lookupFile.toPath(), StandardOpenOption.READ);
+             FileChannel outputChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ)) {
+            List<ForkJoinTask<ParsedRange>> lookupTasks = new ArrayList<>();
+            for (long[] range : splitLines(lookupChannel, pool.getParallelism())) {
+                lookupTasks.add(pool.submit(() -> lookUpRange(lookupChannel, range[0], range[1])));
+            }
+            List<ForkJoinTask<ParsedRange>> outputTasks = new ArrayList<>();
+            for (long[] range : splitLines(outputChannel, pool.getParallelism())) {
+                outputTasks.add(pool.submit(() -> parseOutputRange(outputChannel, range[0], range[1])));
+            }
 
-                if (!expected.equals(result)) {
-                    System.out.println("Error with lookup: " + lineLookup + ", expected: " + lineOutput + ", actual: " + result);
-                    return false;
+            // the ranges of both files end on different lines, so they are walked side by side
+            Iterator<ForkJoinTask<ParsedRange>> outputs = outputTasks.iterator();
+            ParsedRange output = new ParsedRange(0);
+            int outputIndex = 0;
+            for (ForkJoinTask<ParsedRange> lookupTask : lookupTasks) {
+                ParsedRange lookup = lookupTask.join();
+                for (int i = 0; i < lookup.count; i++, outputIndex++) {
+                    while (outputIndex == output.count && outputs.hasNext()) {
+                        output = outputs.next().join();
+                        outputIndex = 0;
+                    }
+                    if (outputIndex == output.count) {
+                        break;
+                    }
+                    lookups++;
+                    if (output.values[outputIndex] != lookup.ports[i] && errorCount++ < MAX_REPORTED_ERRORS) {
+                        errors.add("Error with lookup: " + ipToHuman(lookup.values[i]) + ", expected: "
+                                + output.values[outputIndex] + ", actual: " + lookup.ports[i]);
+                    }
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not open " + lookupFile + " or " + outputFile);
+            return false;
+        }
+        long time = System.nanoTime() - start;
+
+        for (String error : errors) {
+            System.out.println(error);
+        }
+        if (errorCount > errors.size()) {
+            System.out.println("... and " + (errorCount - errors.size()) + " more errors");
+        }
+        System.out.printf("Checked %d lookups with %d errors in %d ms (%.1f M/s)%n",
+                lookups, errorCount, time / 1_000_000, lookups * 1e3 / time);
+
+        return errorCount == 0;
+    }
+
+    /**
+     * Splits a file into ranges that end just after a newline, about
+     * PARALLEL_RANGE_BYTES long and at least four per thread
+     *
+     * @return The start and end offset of every range, in file order
+     */
+    private static List<long[]> splitLines(FileChannel channel, int parallelism) throws IOException {
+        long size = channel.size();
+        long parts = Math.max(4L * parallelism, size / PARALLEL_RANGE_BYTES);
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long start = 0;
+        for (long part = 1; part <= parts && start < size; part++) {
+            long end = Math.max(start, size * part / parts);
+            // move the end past the next newline
+            while (end < size) {
+                buffer.clear();
+                int n = channel.read(buffer, end);
+                int newline = -1;
+                for (int i = 0; i < n && newline == -1; i++) {
+                    if (buffer.get(i) == '\n') {
+                        newline = i;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += n;
+            }
+            if (end > start) {
+                ranges.add(new long[]{start, end});
+                start = end;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses the IPs of a range of lookup.txt and looks them up
+     */
+    private ParsedRange lookUpRange(FileChannel channel, long start, long end) {
+        ParsedRange range = new ParsedRange((int) ((end - start) / 8));
+        try (TextParser parser = new TextParser(channel, start, end)) {
+            while (parser.hasNext()) {
+                range.add(parser.nextIP());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        range.ports = new int[range.count];
+        for (int i = 0; i < range.count; i++) {
+            range.ports[i] = lpm.lookup(range.values[i]);
+        }
+        return range;
+    }
+
+    /**
+     * Parses the ports of a range of expected_output.txt
+     */
+    private static ParsedRange parseOutputRange(FileChannel channel, long start, long end) {
+        ParsedRange range = new ParsedRange((int) ((end - start) / 2));
+        try (TextParser parser = new TextParser(channel, start, end)) {
+            while (parser.hasNext()) {
+                range.add(parser.nextInt());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return range;
+    }
+
+    /**
+     * Numbers parsed from a range of a file, and for lookups the ports they map to
+     */
+    private static class ParsedRange {
+        int[] values;
+        int[] ports;
+        int count = 0;
+
+        ParsedRange(int capacity) {
+            values = new int[Math.max(capacity, 16)];
+        }
+
+        void add(int value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            values[count++] = value;
+        }
+    }
+
+    /**
+     * Looks up the IPs from lookup.txt with both lpm and a ReferenceMatcher holding
+     * the routes from routes.txt, so no expected output is needed. Like
+     * readLookupParallel, all mismatches are counted.
+     */
+    private boolean diffAgainstReference(File routesFile, File lookupFile) {
+        ReferenceMatcher reference = new ReferenceMatcher();
+        try (TextParser parser = new TextParser(routesFile)) {
+            while (parser.hasNext()) {
+                int ip = parser.nextIP();
+                parser.expect('/');
+                byte prefixLength = (byte) parser.nextPrefixLength(32);
+                parser.expect('\t');
+                reference.addRoute(ip, prefixLength, parser.nextInt());
+            }
+            reference.finalizeRoutes();
+        } catch (IOException e) {
+            System.err.println("Could not open " + routesFile);
+            return false;
+        }
+
+        int[] ips = new int[CHUNK_SIZE];
+        int[] ports = new int[CHUNK_SIZE];
+        long lookups = 0;
+        long errors = 0;
+        try (TextParser parser = new TextParser(lookupFile)) {
+            while (parser.hasNext()) {
+                int count = 0;
+                while (count < CHUNK_SIZE && parser.hasNext()) {
+                    ips[count++] = parser.nextIP();
+                }
+                lpm.lookupBatch(ips, ports, count);
+
+                for (int i = 0; i < count; i++) {
+                    int expected = reference.lookup(ips[i]);
+                    if (expected != ports[i] && errors++ < MAX_REPORTED_ERRORS) {
+                        System.out.println("Error with lookup: " + ipToHuman(ips[i]) + ", expected: " + expected + ", actual: " + ports[i]);
+                    }
+                }
+                lookups += count;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile);
+            return false;
+        }
+
+        if (errors > MAX_REPORTED_ERRORS) {
+            System.out.println("... and " + (errors - MAX_REPORTED_ERRORS) + " more errors");
+        }
+        System.out.printf("Compared %d lookups against the reference matcher with %d errors%n", lookups, errors);
+        return errors == 0;
+    }
+
+    /**
+     * Prints the recorded lookup statistics and the memory of every table, and
+     * stops recording so the throughput measurement is not affected
+     */
+    private void printStats() {
+        lpm.setStatsRecording(false);
+        System.out.println(lpm.getLookupStats());
+        lpm.getTableBytes().forEach((table, bytes) ->
+                System.out.printf("%s: %.1f MB%n", table, bytes / 1e6));
+    }
+
+    /**
+     * Replays the first THROUGHPUT_SAMPLE IPs of the lookup file and prints the
+     * lookups per second of both single and batched lookups
+     *
+     * @param lookupFile The lookup file, lookup.txt or lookup.bin
+     * @param binary     Whether the lookup file is binary
+     */
+    private void reportThroughput(File lookupFile, boolean binary) {
+        int[] ips;
+        try {
+            ips = binary ? readSampleBinary(lookupFile) : readSample(lookupFile);
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile);
+            return;
+        }
+        if (ips.length == 0) {
+            return;
+        }
+
+        int rounds = Math.max(1, THROUGHPUT_LOOKUPS / ips.length);
+        int[] batch = new int[BATCH_SIZE];
+        int[] ports = new int[BATCH_SIZE];
+
+        // run both paths once before measuring, so that they are compiled
+        replaySingle(ips, 1);
+        replayBatched(ips, 1, batch, ports);
+
+        long start = System.nanoTime();
+        long singleSum = replaySingle(ips, rounds);
+        long singleTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long batchedSum = replayBatched(ips, rounds, batch, ports);
+        long batchedTime = System.nanoTime() - start;
+
+        if (singleSum != batchedSum) {
+            System.out.println("Error: batched lookups returned different ports than single lookups");
+        }
+
+        double lookups = (double) rounds * ips.length;
+        System.out.printf("Single lookups: %.1f M/s%n", lookups * 1e3 / singleTime);
+        System.out.printf("Batched lookups (%d per batch): %.1f M/s (%.2fx)%n",
+                BATCH_SIZE, lookups * 1e3 / batchedTime, (double) singleTime / batchedTime);
+    }
+
+    /**
+     * Reads the first THROUGHPUT_SAMPLE IPs of lookup.txt
+     */
+    private static int[] readSample(File lookupFile) throws IOException {
+        int[] ips = new int[THROUGHPUT_SAMPLE];
+        int count = 0;
+        try (TextParser parser = new TextParser(lookupFile)) {
+            while (count < ips.length && parser.hasNext()) {
+                ips[count++] = parser.nextIP();
+            }
+        }
+        return Arrays.copyOf(ips, count);
+    }
+
+    /**
+     * Reads the first THROUGHPUT_SAMPLE raw IPs of lookup.bin
+     */
+    private static int[] readSampleBinary(File lookupFile) throws IOException {
+        int[] ips = new int[THROUGHPUT_SAMPLE];
+        int count = 0;
+        for (ByteBuffer buffer : BinaryFiles.map(lookupFile, BinaryFiles.INT_RECORD_SIZE)) {
+            while (count < ips.length && buffer.hasRemaining()) {
+                ips[count++] = buffer.getInt();
+            }
+        }
+        return Arrays.copyOf(ips, count);
+    }
+
+    /**
+     * Looks up the IPs one at a time
+     *
+     * @return The sum of the returned ports, so the lookups cannot be optimized away
+     */
+    private long replaySingle(int[] ips, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int ip : ips) {
+                sum += lpm.lookup(ip);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Looks up the IPs in batches of BATCH_SIZE
+     *
+     * @return The sum of the returned ports, so the lookups cannot be optimized away
+     */
+    private long replayBatched(int[] ips, int rounds, int[] batch, int[] ports) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int offset = 0; offset < ips.length; offset += BATCH_SIZE) {
+                int count = Math.min(BATCH_SIZE, ips.length - offset);
+                System.arraycopy(ips, offset, batch, 0, count);
+                lpm.lookupBatch(batch, ports, count);
+                for (int i = 0; i < count; i++) {
+                    sum += ports[i];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Generates the binary files that are missing or older than their text version
+     *
+     * @return Whether all binary files are available
+     */
+    private static boolean convertToBinary() {
+        try {
+            if (BinaryFiles.isOutdated(ROUTES_FILE, ROUTES_BINARY_FILE)) {
+                BinaryFiles.convertRoutes(ROUTES_FILE, ROUTES_BINARY_FILE);
+            }
+            if (BinaryFiles.isOutdated(LOOKUP_FILE, LOOKUP_BINARY_FILE)) {
+                BinaryFiles.convertLookups(LOOKUP_FILE, LOOKUP_BINARY_FILE);
+            }
+            if (BinaryFiles.isOutdated(OUTPUT_FILE, OUTPUT_BINARY_FILE)) {
+                BinaryFiles.convertOutputs(OUTPUT_FILE, OUTPUT_BINARY_FILE);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not convert the text files to binary: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads packed routes from routes.bin and passes them to this.addRoute
+     */
+    private void readRoutesBinary(File routesFile) {
+        try {
+            for (ByteBuffer buffer : BinaryFiles.map(routesFile, BinaryFiles.ROUTE_RECORD_SIZE)) {
+                while (buffer.hasRemaining()) {
+                    int ip = buffer.getInt();
+                    byte prefixLength = buffer.get();
+                    int portNumber = buffer.getInt();
+                    lpm.addRoute(ip, prefixLength, portNumber);
+                }
+            }
+            finalizeRoutes();
+        } catch (IOException e) {
+            System.err.println("Could not open " + routesFile);
+        }
+    }
+
+    /**
+     * Reads raw IPs from lookup.bin and checks them against the raw ports in expected_output.bin
+     */
+    private boolean readLookupBinary(File lookupFile, File outputFile) {
+        try {
+            List<ByteBuffer> lookups = BinaryFiles.map(lookupFile, BinaryFiles.INT_RECORD_SIZE);
+            List<ByteBuffer> outputs = BinaryFiles.map(outputFile, BinaryFiles.INT_RECORD_SIZE);
+
+            // both files have 4-byte records, so their mappings line up
+            for (int i = 0; i < Math.min(lookups.size(), outputs.size()); i++) {
+                ByteBuffer lookup = lookups.get(i);
+                ByteBuffer output = outputs.get(i);
+                while (lookup.hasRemaining() && output.hasRemaining()) {
+                    int ip = lookup.getInt();
+                    int result = lpm.lookup(ip);
+                    int expected = output.getInt();
+
+                    if (expected != result) {
+                        System.out.println("Error with lookup: " + ipToHuman(ip) + ", expected: " + expected + ", actual: " + result);
+                        return false;
+                    }
                 }
             }
         } catch (IOException e) {
             System.err.println("Could not open " + lookupFile + " or " + outputFile);
             return false;
         }
-        
+
         return true;
     }
 
+    /**
+     * Finalizes the routes, reporting the effect of aggregation if it is enabled
+     */
+    private void finalizeRoutes() {
+        lpm.finalizeRoutes(aggregate);
+        if (aggregate) {
+            System.out.println("Aggregation removed " + lpm.getAggregationSavings() + " routes");
+        }
+    }
+
+    /**
+     * Maps the routes and lookup structure from a snapshot image
+     */
+    private void loadSnapshot(File snapshotFile) {
+        long start = System.nanoTime();
+        try {
+            lpm.loadSnapshot(snapshotFile, true);
+        } catch (IOException e) {
+            System.err.println("Could not load " + snapshotFile + ": " + e.getMessage());
+            return;
+        }
+        System.out.printf("Loaded %s in %.1f ms%n", snapshotFile, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Writes the finalized routes to a snapshot image, so the next run can map it
+     */
+    private void saveSnapshot(File snapshotFile) {
+        try {
+            lpm.saveSnapshot(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Could not write " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Reads routes from routes.txt and parses each
      */
     private void readRoutes(File routesFile) {
-        BufferedReader br = null;
+        try (TextParser parser = new TextParser(routesFile)) {
+            while (parser.hasNext()) {
+                // each line reads ip/prefixLength<tab>portNumber
+                int ip = parser.nextIP();
+                parser.expect('/');
+                byte prefixLength = (byte) parser.nextPrefixLength(32);
+                parser.expect('\t');
+                int portNumber = parser.nextInt();
+
+                lpm.addRoute(ip, prefixLength, portNumber);
+            }
+            finalizeRoutes();
+        } catch (IOException e) {
+            System.err.println("Could not open " + routesFile);
+        }
+    }
+
+    /**
+     * Reads IPv6 routes from routes6.txt and passes them to lpm6.addRoute
+     */
+    private void readRoutes6(File routesFile) {
+        long[] address = new long[2];
+        try (TextParser parser = new TextParser(routesFile)) {
+            while (parser.hasNext()) {
+                // each line reads ip/prefixLength<tab>portNumber
+                parser.nextIP6(address);
+                parser.expect('/');
+                int prefixLength = parser.nextPrefixLength(128);
+                parser.expect('\t');
+                int portNumber = parser.nextInt();
+
+                lpm6.addRoute(address[0], address[1], prefixLength, portNumber);
+            }
+            lpm6.finalizeRoutes();
+        } catch (IOException e) {
+            System.err.println("Could not open " + routesFile);
+        }
+    }
+
+    /**
+     * Reads IPv6 addresses to look up from lookup6.txt and checks them against expected_output6.txt
+     */
+    private boolean readLookup6(File lookupFile, File outputFile) {
+        long[] address = new long[2];
+        try (TextParser lookups = new TextParser(lookupFile);
+             TextParser outputs = new TextParser(outputFile)) {
+
+            while (lookups.hasNext() && outputs.hasNext()) {
+                lookups.nextIP6(address);
+                int result = lpm6.lookup(address[0], address[1]);
+                int expected = outputs.nextInt();
+
+                if (expected != result) {
+                    System.out.println("Error with lookup: " + ip6ToHuman(address[0], address[1]) + ", expected: " + expected + ", actual: " + result);
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile + " or " + outputFile);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Generates the IPv6 binary files that are missing or older than their text version
+     *
+     * @return Whether all binary files are available
+     */
+    private static boolean convertToBinary6() {
+        try {
+            if (BinaryFiles.isOutdated(ROUTES6_FILE, ROUTES6_BINARY_FILE)) {
+                BinaryFiles.convertRoutes6(ROUTES6_FILE, ROUTES6_BINARY_FILE);
+            }
+            if (BinaryFiles.isOutdated(LOOKUP6_FILE, LOOKUP6_BINARY_FILE)) {
+                BinaryFiles.convertLookups6(LOOKUP6_FILE, LOOKUP6_BINARY_FILE);
+            }
+            if (BinaryFiles.isOutdated(OUTPUT6_FILE, OUTPUT6_BINARY_FILE)) {
+                BinaryFiles.convertOutputs(OUTPUT6_FILE, OUTPUT6_BINARY_FILE);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not convert the IPv6 text files to binary: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads packed IPv6 routes from routes6.bin and passes them to lpm6.addRoute
+     */
+    private void readRoutes6Binary(File routesFile) {
         try {
-            br = new BufferedReader(new FileReader(routesFile));
-            String line;
-            while ((line = br.readLine()) != null) {
-                this.parseRoute(line);
+            for (ByteBuffer buffer : BinaryFiles.map(routesFile, BinaryFiles.ROUTE6_RECORD_SIZE)) {
+                while (buffer.hasRemaining()) {
+                    long high = buffer.getLong();
+                    long low = buffer.getLong();
+                    int prefixLength = buffer.get() & 0xff;
+                    int portNumber = buffer.getInt();
+                    lpm6.addRoute(high, low, prefixLength, portNumber);
+                }
             }
-            lpm.finalizeRoutes();
+            lpm6.finalizeRoutes();
         } catch (IOException e) {
             System.err.println("Could not open " + routesFile);
-        } finally {
-            if (br != null) {
-                try { br.close(); }
-                catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Reads raw IPv6 addresses from lookup6.bin and checks them against the raw ports in expected_output6.bin
+     */
+    private boolean readLookup6Binary(File lookupFile, File outputFile) {
+        try {
+            // the records differ in size, so the mappings of both files do not line up
+            Iterator<ByteBuffer> lookups = BinaryFiles.map(lookupFile, BinaryFiles.IP6_RECORD_SIZE).iterator();
+            Iterator<ByteBuffer> outputs = BinaryFiles.map(outputFile, BinaryFiles.INT_RECORD_SIZE).iterator();
+            ByteBuffer lookup = ByteBuffer.allocate(0);
+            ByteBuffer output = ByteBuffer.allocate(0);
+
+            while (true) {
+                if (!lookup.hasRemaining()) {
+                    if (!lookups.hasNext()) {
+                        break;
+                    }
+                    lookup = lookups.next();
+                }
+                if (!output.hasRemaining()) {
+                    if (!outputs.hasNext()) {
+                        break;
+                    }
+                    output = outputs.next();
+                }
+
+                long high = lookup.getLong();
+                long low = lookup.getLong();
+                int result = lpm6.lookup(high, low);
+                int expected = output.getInt();
+
+                if (expected != result) {
+                    System.out.println("Error with lookup: " + ip6ToHuman(high, low) + ", expected: " + expected + ", actual: " + result);
+                    return false;
+                }
             }
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile + " or " + outputFile);
+            return false;
         }
+
+        return true;
     }
 
     /**
-     * Parses a route and passes it to this.addRoute
+     * Replays the first THROUGHPUT_SAMPLE IPv6 addresses of the lookup file and
+     * prints the lookups per second
+     *
+     * @param lookupFile The lookup file, lookup6.txt or lookup6.bin
+     * @param binary     Whether the lookup file is binary
      */
-    private void parseRoute(String line) {
-        String[] split = line.split("\t");
-        int portNumber = Integer.parseInt(split[1]);
+    private void reportThroughput6(File lookupFile, boolean binary) {
+        long[] addresses = new long[2 * THROUGHPUT_SAMPLE];
+        int count = 0;
+        try {
+            if (binary) {
+                for (ByteBuffer buffer : BinaryFiles.map(lookupFile, BinaryFiles.IP6_RECORD_SIZE)) {
+                    while (count < THROUGHPUT_SAMPLE && buffer.hasRemaining()) {
+                        addresses[2 * count] = buffer.getLong();
+                        addresses[2 * count + 1] = buffer.getLong();
+                        count++;
+                    }
+                }
+            } else {
+                long[] address = new long[2];
+                try (TextParser parser = new TextParser(lookupFile)) {
+                    while (count < THROUGHPUT_SAMPLE && parser.hasNext()) {
+                        parser.nextIP6(address);
+                        addresses[2 * count] = address[0];
+                        addresses[2 * count + 1] = address[1];
+                        count++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open " + lookupFile);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        int rounds = Math.max(1, THROUGHPUT_LOOKUPS / count);
 
-        split = split[0].split("/");
-        byte prefixLength = Byte.parseByte(split[1]);
+        // run once before measuring, so that the lookup is compiled
+        replaySingle6(addresses, count, 1);
 
-        int ip = this.parseIP(split[0]);
+        long start = System.nanoTime();
+        long sum = replaySingle6(addresses, count, rounds);
+        long time = System.nanoTime() - start;
 
-        lpm.addRoute(ip, prefixLength, portNumber);
+        double lookups = (double) rounds * count;
+        System.out.printf("Single lookups: %.1f M/s (checksum %d)%n", lookups * 1e3 / time, sum);
     }
 
     /**
-     * Parses an IP
-     * @param ipString The IP address to convert
-     * @return The integer representation for the IP
+     * Looks up the IPv6 addresses, stored as pairs of longs, one at a time
+     *
+     * @return The sum of the returned ports, so the lookups cannot be optimized away
      */
-    private int parseIP(String ipString) {
-        String[] ipParts = ipString.split("\\.");
+    private long replaySingle6(long[] addresses, int count, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < count; i++) {
+                sum += lpm6.lookup(addresses[2 * i], addresses[2 * i + 1]);
+            }
+        }
+        return sum;
+    }
 
-        int ip = 0;
-        for (int i = 0; i < 4; i++) {
-            ip |= Integer.parseInt(ipParts[i]) << (24 - (8 * i));
+    /**
+     * Converts an IPv6 address to the human readable form
+     * @param high The most significant 64 bits of the address
+     * @param low  The least significant 64 bits of the address
+     * @return The String representation for the IP (as eight hexadecimal groups)
+     */
+    private static String ip6ToHuman(long high, long low) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            long half = i < 4 ? high : low;
+            if (i > 0) {
+                builder.append(':');
+            }
+            builder.append(Long.toHexString(half >>> 48 - 16 * (i % 4) & 0xffff));
         }
+        return builder.toString();
+    }
 
-        return ip;
+    /**
+     * Converts an integer representation IP to the human readable form
+     * @param ip The IP address to convert
+     * @return The String representation for the IP (as xxx.xxx.xxx.xxx)
+     */
+    static String ipToHuman(int ip) {
+        return (ip >> 24 & 0xff) + "." + (ip >> 16 & 0xff) + "." + (ip >> 8 & 0xff) + "." + (ip & 0xff);
     }
 }
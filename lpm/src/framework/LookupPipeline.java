@@ -0,0 +1,329 @@
+package framework;
+
+import lpm.LongestPrefixMatcher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks a lookup file against its expected output with a pipeline of threads.
+ * <p>
+ * Two reader stages read raw blocks of both files, a parse stage turns them into
+ * batches of IPs and expected ports, a lookup stage looks the batches up and a
+ * compare stage checks the results. The stages are connected by bounded
+ * {@link StageQueue}s, so reading, parsing and lookups overlap while the memory in
+ * use does not depend on the size of the files.
+ * <p>
+ * Once done, the busy time of every stage is printed, which is its running time
+ * minus the time it waited on its queues. The stage with the most busy time is
+ * the bottleneck.
+ */
+class LookupPipeline {
+    private static final int READ_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_CAPACITY = 16;
+
+    private final LongestPrefixMatcher lpm;
+
+    private final StageQueue<ByteBuffer> lookupBlocks = new StageQueue<>(QUEUE_CAPACITY);
+    private final StageQueue<ByteBuffer> outputBlocks = new StageQueue<>(QUEUE_CAPACITY);
+    private final StageQueue<Batch> parsed = new StageQueue<>(QUEUE_CAPACITY);
+    private final StageQueue<Batch> lookedUp = new StageQueue<>(QUEUE_CAPACITY);
+
+    // first exception thrown by any stage
+    private volatile Throwable failure;
+
+    // message of the first mismatch, written by the compare stage
+    private String error;
+
+    LookupPipeline(LongestPrefixMatcher lpm) {
+        this.lpm = lpm;
+    }
+
+    /**
+     * Runs all stages and waits for them to finish. The pipeline stops at the
+     * first mismatch, like Framework.readLookup.
+     *
+     * @return Whether all lookups returned the expected port
+     * @throws IOException If a file could not be read
+     */
+    boolean run(File lookupFile, File outputFile) throws IOException {
+        List<Stage> stages = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try (InputStream lookupIn = new FileInputStream(lookupFile);
+             InputStream outputIn = new FileInputStream(outputFile)) {
+
+            stages.add(new Stage("read lookups", "MB", () -> read(lookupIn, lookupBlocks),
+                    List.of(), List.of(lookupBlocks)));
+            stages.add(new Stage("read outputs", "MB", () -> read(outputIn, outputBlocks),
+                    List.of(), List.of(outputBlocks)));
+            stages.add(new Stage("parse", "M lines", this::parse,
+                    List.of(lookupBlocks, outputBlocks), List.of(parsed)));
+            stages.add(new Stage("lookup", "M lookups", this::lookup,
+                    List.of(parsed), List.of(lookedUp)));
+            stages.add(new Stage("compare", "M lookups", this::compare,
+                    List.of(lookedUp), List.of()));
+
+            for (Stage stage : stages) {
+                stage.thread.start();
+            }
+            for (Stage stage : stages) {
+                stage.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking lookups");
+        }
+        long time = System.nanoTime() - start;
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        if (error != null) {
+            System.out.println(error);
+        }
+        printStages(stages, time);
+        return error == null;
+    }
+
+    /**
+     * Reader stage: passes the blocks of a file on as they are read
+     *
+     * @return The number of bytes read
+     */
+    private long read(InputStream in, StageQueue<ByteBuffer> blocks) throws IOException {
+        long bytes = 0;
+        while (true) {
+            byte[] block = new byte[READ_SIZE];
+            int length = in.read(block);
+            if (length < 0) {
+                return bytes;
+            }
+            bytes += length;
+            if (!blocks.put(ByteBuffer.wrap(block, 0, length))) {
+                return bytes;
+            }
+        }
+    }
+
+    /**
+     * Parse stage: turns the blocks of both files into batches of IPs and expected ports
+     *
+     * @return The number of lines parsed
+     */
+    private long parse() throws IOException {
+        TextParser lookups = new TextParser(new BlockStream(lookupBlocks));
+        TextParser outputs = new TextParser(new BlockStream(outputBlocks));
+        long lines = 0;
+
+        while (true) {
+            Batch batch = new Batch();
+            while (batch.count < BATCH_SIZE && lookups.hasNext() && outputs.hasNext()) {
+                batch.ips[batch.count] = lookups.nextIP();
+                batch.expected[batch.count] = outputs.nextInt();
+                batch.count++;
+            }
+            if (batch.count == 0) {
+                return lines;
+            }
+
+            lines += batch.count;
+            if (!parsed.put(batch) || batch.count < BATCH_SIZE) {
+                return lines;
+            }
+        }
+    }
+
+    /**
+     * Lookup stage: looks up every batch at once
+     *
+     * @return The number of lookups
+     */
+    private long lookup() {
+        long lookups = 0;
+        for (Batch batch = parsed.take(); batch != null; batch = parsed.take()) {
+            lpm.lookupBatch(batch.ips, batch.results, batch.count);
+            lookups += batch.count;
+            if (!lookedUp.put(batch)) {
+                break;
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * Compare stage: checks the results against the expected ports, stopping at the first mismatch
+     *
+     * @return The number of lookups checked
+     */
+    private long compare() {
+        long lookups = 0;
+        for (Batch batch = lookedUp.take(); batch != null; batch = lookedUp.take()) {
+            for (int i = 0; i < batch.count; i++) {
+                if (batch.expected[i] != batch.results[i]) {
+                    error = "Error with lookup: " + Framework.ipToHuman(batch.ips[i])
+                            + ", expected: " + batch.expected[i] + ", actual: " + batch.results[i];
+                    return lookups + i;
+                }
+            }
+            lookups += batch.count;
+        }
+        return lookups;
+    }
+
+    /**
+     * Prints the busy time and throughput of every stage, marking the bottleneck
+     */
+    private static void printStages(List<Stage> stages, long time) {
+        Stage bottleneck = stages.get(0);
+        for (Stage stage : stages) {
+            if (stage.busyNanos() > bottleneck.busyNanos()) {
+                bottleneck = stage;
+            }
+        }
+
+        System.out.printf("Pipeline finished in %d ms%n", time / 1_000_000);
+        for (Stage stage : stages) {
+            double amount = stage.items / 1e6;
+            long busy = Math.max(1, stage.busyNanos());
+            System.out.printf("  %-12s %8.1f %-9s %6d ms busy %8.1f %s/s%s%n",
+                    stage.name, amount, stage.unit, busy / 1_000_000, amount * 1e9 / busy, stage.unit,
+                    stage == bottleneck ? "  <- bottleneck" : "");
+        }
+    }
+
+    /**
+     * The work of a stage
+     */
+    @FunctionalInterface
+    private interface StageBody {
+        /**
+         * Runs the stage until its input ends or its output is cancelled
+         *
+         * @return The number of items processed
+         */
+        long run() throws IOException;
+    }
+
+    /**
+     * A stage running on its own thread
+     */
+    private class Stage implements Runnable {
+        final String name;
+        final String unit;
+        final Thread thread;
+
+        private final StageBody body;
+        private final List<StageQueue<?>> inputs;
+        private final List<StageQueue<?>> outputs;
+
+        // written by the stage thread, read after joining it
+        long items = 0;
+        long runNanos = 0;
+
+        Stage(String name, String unit, StageBody body,
+              List<StageQueue<?>> inputs, List<StageQueue<?>> outputs) {
+            this.name = name;
+            this.unit = unit;
+            this.body = body;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.thread = new Thread(this, "pipeline-" + name.replace(' ', '-'));
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                items = body.run();
+                for (StageQueue<?> output : outputs) {
+                    output.close();
+                }
+                // anything still coming in is not needed anymore
+                for (StageQueue<?> input : inputs) {
+                    input.cancel();
+                }
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                cancelAll();
+            }
+            runNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Gets the running time of the stage without the time spent waiting on its queues
+         */
+        long busyNanos() {
+            long busy = runNanos;
+            for (StageQueue<?> input : inputs) {
+                busy -= input.takeWaitNanos();
+            }
+            for (StageQueue<?> output : outputs) {
+                busy -= output.putWaitNanos();
+            }
+            return busy;
+        }
+    }
+
+    /**
+     * Stops all stages after a failure
+     */
+    private void cancelAll() {
+        lookupBlocks.cancel();
+        outputBlocks.cancel();
+        parsed.cancel();
+        lookedUp.cancel();
+    }
+
+    /**
+     * IPs of a batch with their expected and actual ports
+     */
+    private static class Batch {
+        final int[] ips = new int[BATCH_SIZE];
+        final int[] expected = new int[BATCH_SIZE];
+        final int[] results = new int[BATCH_SIZE];
+        int count = 0;
+    }
+
+    /**
+     * Input stream over the blocks of a reader stage
+     */
+    private static class BlockStream extends InputStream {
+        private final StageQueue<ByteBuffer> blocks;
+        private ByteBuffer block = ByteBuffer.allocate(0);
+
+        BlockStream(StageQueue<ByteBuffer> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (!block.hasRemaining()) {
+                ByteBuffer next = blocks.take();
+                if (next == null) {
+                    return -1;
+                }
+                block = next;
+            }
+            int length = Math.min(len, block.remaining());
+            block.get(b, off, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package framework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer single-consumer queue connecting two pipeline stages.
+ * <p>
+ * Producer and consumer only synchronize through two counters, so neither ever
+ * takes a lock. A full queue makes the producer wait, which bounds the number of
+ * items in flight. Waiting spins briefly, then yields and finally parks, so stages
+ * sharing a core still make progress.
+ * <p>
+ * The producer closes the queue after its last item. Either side can cancel it,
+ * after which put and take return immediately.
+ */
+class StageQueue<T> {
+    private final Object[] slots;
+    private final int mask;
+
+    // number of items taken and put so far
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private volatile boolean cancelled = false;
+
+    // time spent waiting by each side, only written by that side
+    private long putWaitNanos = 0;
+    private long takeWaitNanos = 0;
+
+    /**
+     * Creates an empty queue
+     *
+     * @param capacity The maximum number of items in the queue, a power of two
+     */
+    StageQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        slots = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds an item, waiting while the queue is full
+     *
+     * @return Whether the item was added, false if the queue was cancelled
+     */
+    boolean put(T item) {
+        long t = tail.get();
+        long start = 0;
+        for (int round = 0; t - head.get() == slots.length; round++) {
+            if (cancelled) {
+                return false;
+            }
+            if (start == 0) {
+                start = System.nanoTime();
+            }
+            idle(round);
+        }
+        if (start != 0) {
+            putWaitNanos += System.nanoTime() - start;
+        }
+
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return !cancelled;
+    }
+
+    /**
+     * Removes the oldest item, waiting while the queue is empty
+     *
+     * @return The item, or null if the queue was closed and is empty, or was cancelled
+     */
+    T take() {
+        long h = head.get();
+        long start = 0;
+        for (int round = 0; h == tail.get(); round++) {
+            if (cancelled) {
+                return null;
+            }
+            if (closed) {
+                // the last item may have been put right before closing
+                if (h == tail.get()) {
+                    return null;
+                }
+                break;
+            }
+            if (start == 0) {
+                start = System.nanoTime();
+            }
+            idle(round);
+        }
+        if (start != 0) {
+            takeWaitNanos += System.nanoTime() - start;
+        }
+
+        int slot = (int) h & mask;
+        @SuppressWarnings("unchecked")
+        T item = (T) slots[slot];
+        slots[slot] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * Marks the end of the items, called by the producer after its last put
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Stops both sides, for example because the consumer does not need more items
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Gets the time the producer waited for space
+     */
+    long putWaitNanos() {
+        return putWaitNanos;
+    }
+
+    /**
+     * Gets the time the consumer waited for items
+     */
+    long takeWaitNanos() {
+        return takeWaitNanos;
+    }
+
+    /**
+     * Waits a little, longer the more rounds have passed
+     */
+    private static void idle(int round) {
+        if (round < 100) {
+            Thread.onSpinWait();
+        } else if (round < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package framework;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming parser for the text route, lookup and output files.
+ * <p>
+ * Numbers, dotted-quad IPs and IPv6 addresses are parsed straight from a byte buffer into ints,
+ * so reading a file does not create any objects per line. Records are separated
+ * by whitespace; within a record the caller checks the separators with expect.
+ * Malformed input results in a NumberFormatException, like Integer.parseInt.
+ */
+public class TextParser implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // groups of the IPv6 address being parsed, as written
+    private final int[] groups = new int[8];
+
+    public TextParser(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public TextParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Creates a parser for a range of a file, so that several threads can parse
+     * parts of the same file. Closing the parser does not close the channel.
+     *
+     * @param channel The channel of the file, only read with positional reads
+     * @param start   The offset of the first byte of the range
+     * @param end     The offset just past the last byte of the range
+     */
+    public TextParser(FileChannel channel, long start, long end) {
+        this(new InputStream() {
+            private long position = start;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+        });
+    }
+
+    /**
+     * Skips whitespace and checks whether another record follows
+     *
+     * @return Whether there is more input
+     */
+    public boolean hasNext() throws IOException {
+        while (true) {
+            int b = peek();
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return b != -1;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Parses an IP in dotted-quad notation
+     *
+     * @return The integer representation for the IP
+     */
+    public int nextIP() throws IOException {
+        int ip = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                expect('.');
+            }
+            long part = nextUnsigned();
+            if (part > 255) {
+                throw new NumberFormatException("IP part out of range: " + part);
+            }
+            ip = ip << 8 | (int) part;
+        }
+        return ip;
+    }
+
+    /**
+     * Parses an IPv6 address in colon-hexadecimal notation, where a single "::"
+     * may replace a run of zero groups. Embedded dotted-quad parts are not supported.
+     *
+     * @param address The array receiving the most and least significant 64 bits
+     */
+    public void nextIP6(long[] address) throws IOException {
+        int count = 0;
+        int gap = -1;
+        if (peek() == ':') {
+            position++;
+            expect(':');
+            gap = 0;
+        }
+        while (count < 8 && hexValue(peek()) >= 0) {
+            groups[count++] = nextHexGroup();
+            if (peek() != ':') {
+                break;
+            }
+            position++;
+            if (peek() == ':') {
+                if (gap >= 0) {
+                    throw new NumberFormatException("Multiple '::' in IPv6 address");
+                }
+                position++;
+                gap = count;
+            } else if (hexValue(peek()) < 0) {
+                throw new NumberFormatException("Expected an IPv6 group");
+            }
+        }
+        if (gap < 0 ? count != 8 : count > 7) {
+            throw new NumberFormatException("Wrong number of IPv6 groups: " + count);
+        }
+
+        // the groups after the gap are aligned to the end of the address
+        long high = 0;
+        long low = 0;
+        int shifted = gap < 0 ? 0 : 8 - count;
+        for (int i = 0; i < 8; i++) {
+            long group;
+            if (gap < 0 || i < gap) {
+                group = groups[i];
+            } else if (i >= gap + shifted) {
+                group = groups[i - shifted];
+            } else {
+                group = 0;
+            }
+
+            if (i < 4) {
+                high = high << 16 | group;
+            } else {
+                low = low << 16 | group;
+            }
+        }
+        address[0] = high;
+        address[1] = low;
+    }
+
+    /**
+     * Parses a decimal number, optionally preceded by a minus sign
+     *
+     * @return The parsed number
+     */
+    public int nextInt() throws IOException {
+        boolean negative = peek() == '-';
+        if (negative) {
+            position++;
+        }
+        long value = nextUnsigned();
+        if (value > (negative ? 1L << 31 : Integer.MAX_VALUE)) {
+            throw new NumberFormatException("Number out of range: " + (negative ? "-" : "") + value);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Parses the length of a prefix
+     *
+     * @param maxLength The number of bits of an address
+     * @return The parsed length, between 0 and maxLength
+     */
+    public int nextPrefixLength(int maxLength) throws IOException {
+        int length = nextInt();
+        if (length < 0 || length > maxLength) {
+            throw new NumberFormatException("Prefix length out of range: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Consumes a separator character
+     *
+     * @param c The expected character
+     */
+    public void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw new NumberFormatException("Expected '" + c + "'");
+        }
+        position++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parses a sequence of decimal digits, whose value may be at most 2^31
+     */
+    private long nextUnsigned() throws IOException {
+        long value = 0;
+        int digits = 0;
+        for (int b = peek(); b >= '0' && b <= '9'; b = peek()) {
+            value = value * 10 + (b - '0');
+            if (value > 1L << 31) {
+                throw new NumberFormatException("Number out of range");
+            }
+            position++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Expected a number");
+        }
+        return value;
+    }
+
+    /**
+     * Parses a group of one to four hexadecimal digits
+     */
+    private int nextHexGroup() throws IOException {
+        int value = 0;
+        int digits = 0;
+        for (int digit = hexValue(peek()); digit >= 0; digit = hexValue(peek())) {
+            if (++digits > 4) {
+                throw new NumberFormatException("IPv6 group out of range");
+            }
+            value = value << 4 | digit;
+            position++;
+        }
+        return value;
+    }
+
+    /**
+     * Gets the value of a hexadecimal digit
+     *
+     * @return The value of the digit, or -1 if the byte is not a hexadecimal digit
+     */
+    private static int hexValue(int b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the next byte without consuming it, refilling the buffer if needed
+     *
+     * @return The next byte, or -1 at the end of the input
+     */
+    private int peek() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+}
@@ -0,0 +1,78 @@
+package lpm;
+
+import java.util.function.Function;
+
+/**
+ * The lookup structures a {@link LongestPrefixMatcher} can build in finalizeRoutes.
+ */
+public enum Backend {
+    /**
+     * One hash table per prefix length, probed from the longest length down;
+     * the baseline for the other backends
+     */
+    LENGTH_SCAN(LengthScanTable::new),
+
+    /**
+     * 16/8/8 multibit trie, at most three array reads per lookup
+     */
+    MULTIBIT_TRIE(MultibitTrie::new),
+
+    /**
+     * DIR-24-8 direct-indexed table, one array read for prefixes up to /24
+     * at the cost of a 64 MB primary table, which route changes after
+     * finalizeRoutes copy as a whole
+     */
+    DIR_24_8(routes -> new Dir248Table(routes, false)),
+
+    /**
+     * DIR-24-8 with its primary table in pages of 4096 slots, so route changes
+     * only copy the pages they touch, at the cost of an extra dependent read
+     * per lookup
+     */
+    DIR_24_8_PAGED(routes -> new Dir248Table(routes, true)),
+
+    /**
+     * Poptrie compressed trie, a few MB for a full table and at most
+     * four reads per lookup. Its nodes cannot be patched, so route
+     * changes after finalizeRoutes rebuild it
+     */
+    POPTRIE(Poptrie::new),
+
+    /**
+     * Hash table with binary search on prefix lengths, at most 5 hash probes
+     * per lookup with up to 31 distinct prefix lengths. It is rebuilt on
+     * route changes after finalizeRoutes
+     */
+    LENGTH_SEARCH(LengthSearchTable::new),
+
+    /**
+     * 16/8/8 multibit trie like MULTIBIT_TRIE, with its levels in direct buffers
+     * outside the heap, so they add nothing to garbage collection pauses. It uses
+     * the same layout as snapshot images and is rebuilt on route changes after
+     * finalizeRoutes
+     */
+    OFF_HEAP_TRIE(BufferMultibitTrie::offHeap),
+
+    /**
+     * Sorted, non-overlapping address ranges behind a direct table on the top
+     * 16 bits (DXR), searched with a branchless binary search; the most compact
+     * backend. It is rebuilt on route changes after finalizeRoutes
+     */
+    RANGE_SEARCH(RangeTable::new);
+
+    private final Function<LongestPrefixMatcher, LookupEngine> factory;
+
+    Backend(Function<LongestPrefixMatcher, LookupEngine> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Builds the lookup structure of this backend
+     *
+     * @param routes The matcher providing the routes
+     * @return The lookup structure
+     */
+    LookupEngine build(LongestPrefixMatcher routes) {
+        return factory.apply(routes);
+    }
+}
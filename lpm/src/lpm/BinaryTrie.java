@@ -0,0 +1,134 @@
+package lpm;
+
+import java.util.Arrays;
+
+/**
+ * Uncompressed binary trie of routes, used as an intermediate step when building
+ * compressed lookup structures.
+ * <p>
+ * Nodes are stored in primitive arrays and identified by their index; the root is
+ * node 0, so 0 also marks a missing child.
+ */
+class BinaryTrie {
+    static final int NONE = 0;
+
+    // two child slots per node, followed by the port of the route ending there (-1 if none)
+    private int[] children = new int[2 * 1024];
+    private int[] ports = new int[1024];
+    private int size = 1;
+
+    /**
+     * Builds the trie from the routes of the given matcher.
+     *
+     * @param routes The matcher providing the routes
+     */
+    BinaryTrie(LongestPrefixMatcher routes) {
+        this();
+        routes.forEachRoute((ip, prefixLength, portNumber) -> insert((long) ip << 32, 0, prefixLength, portNumber));
+    }
+
+    /**
+     * Creates an empty trie, for routes that are inserted one by one.
+     */
+    BinaryTrie() {
+        ports[0] = -1;
+    }
+
+    /**
+     * Gets a child of a node
+     *
+     * @param node The index of the node
+     * @param bit  0 for the left child, 1 for the right child
+     * @return The index of the child, or NONE if it does not exist
+     */
+    int child(int node, int bit) {
+        return children[2 * node + bit];
+    }
+
+    /**
+     * Gets the number of nodes, which are numbered from 0 to size - 1
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether a node has any children
+     */
+    boolean isLeaf(int node) {
+        return children[2 * node] == NONE && children[2 * node + 1] == NONE;
+    }
+
+    /**
+     * Gets the port of the route ending at a node
+     *
+     * @return The port number, or -1 if no route ends at this node
+     */
+    int port(int node) {
+        return ports[node];
+    }
+
+    /**
+     * Adds a route to the trie, creating the nodes along its path. Addresses of up
+     * to 128 bits are given as two longs; IPv4 addresses fill the top of the first.
+     *
+     * @param high         The most significant 64 bits of the network address
+     * @param low          The least significant 64 bits of the network address
+     * @param prefixLength The number of bits indicating the network part
+     * @param portNumber   The port number the IP block routes to
+     */
+    void insert(long high, long low, int prefixLength, int portNumber) {
+        int node = 0;
+        for (int depth = 0; depth < prefixLength; depth++) {
+            int slot = 2 * node + bit(high, low, depth);
+            if (children[slot] == NONE) {
+                // allocate first, newNode may replace the children array
+                int child = newNode();
+                children[slot] = child;
+            }
+            node = children[slot];
+        }
+        ports[node] = portNumber;
+    }
+
+    /**
+     * Finds the longest matching route by walking the trie bit by bit
+     *
+     * @return The port number of the longest match, or -1 if there is none
+     */
+    int lookup(long high, long low) {
+        int node = 0;
+        int port = ports[0];
+        for (int depth = 0; depth < 128; depth++) {
+            node = children[2 * node + bit(high, low, depth)];
+            if (node == NONE) {
+                break;
+            }
+            if (ports[node] != -1) {
+                port = ports[node];
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Gets a bit of a 128-bit address, counting from the most significant one
+     */
+    private static int bit(long high, long low, int depth) {
+        return (int) (depth < 64 ? high >>> 63 - depth : low >>> 127 - depth) & 1;
+    }
+
+    /**
+     * Allocates a node without children or route
+     *
+     * @return The index of the new node
+     */
+    private int newNode() {
+        if (size == ports.length) {
+            ports = Arrays.copyOf(ports, size * 2);
+            children = Arrays.copyOf(children, size * 4);
+        }
+        ports[size] = -1;
+        return size++;
+    }
+}
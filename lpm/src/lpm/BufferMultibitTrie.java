@@ -0,0 +1,140 @@
+package lpm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Map;
+
+/**
+ * Multibit trie whose levels live outside the heap, in direct buffers or in a
+ * memory-mapped snapshot image.
+ * <p>
+ * The levels have the same layout as in {@link MultibitTrie}. As the slots are not
+ * in Java arrays, the garbage collector never has to scan or copy them, however
+ * large the table is; only the small buffer objects are on the heap. A mapped image
+ * is only read from disk where lookups touch it. The levels are never patched, so
+ * any route change rebuilds the structure.
+ */
+class BufferMultibitTrie implements LookupEngine {
+    private final IntBuffer level1;
+    private final IntBuffer level2;
+    private final IntBuffer level3;
+
+    // whether the levels are mapped from a file rather than allocated
+    private final boolean mapped;
+
+    /**
+     * Builds a multibit trie from the routes of the given matcher and moves its
+     * levels into direct buffers.
+     *
+     * @param routes The matcher providing the routes
+     * @return The trie reading the direct buffers
+     */
+    static BufferMultibitTrie offHeap(LongestPrefixMatcher routes) {
+        int[][] levels = new MultibitTrie(routes).levels();
+        return new BufferMultibitTrie(direct(levels[0]), direct(levels[1]), direct(levels[2]), false);
+    }
+
+    /**
+     * Wraps the levels of a mapped image
+     *
+     * @param level1 The first level, 65536 slots
+     * @param level2 The second level blocks
+     * @param level3 The third level blocks
+     */
+    BufferMultibitTrie(IntBuffer level1, IntBuffer level2, IntBuffer level3) {
+        this(level1, level2, level3, true);
+    }
+
+    private BufferMultibitTrie(IntBuffer level1, IntBuffer level2, IntBuffer level3, boolean mapped) {
+        this.level1 = level1;
+        this.level2 = level2;
+        this.level3 = level3;
+        this.mapped = mapped;
+    }
+
+    @Override
+    public int lookup(int ip) {
+        // absolute reads do not touch the buffer position, so lookups can run concurrently
+        int entry = level1.get(ip >>> 16);
+        if (entry >= -1) {
+            return entry;
+        }
+
+        entry = level2.get(blockOffset(entry) | (ip >>> 8 & 0xff));
+        if (entry >= -1) {
+            return entry;
+        }
+
+        return level3.get(blockOffset(entry) | (ip & 0xff));
+    }
+
+    @Override
+    public long trace(int ip) {
+        // the levels do not keep the prefix lengths of the slots
+        int entry = level1.get(ip >>> 16);
+        if (entry >= -1) {
+            return LookupStats.trace(entry, 1, entry == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+        }
+
+        entry = level2.get(blockOffset(entry) | (ip >>> 8 & 0xff));
+        if (entry >= -1) {
+            return LookupStats.trace(entry, 2, entry == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+        }
+
+        entry = level3.get(blockOffset(entry) | (ip & 0xff));
+        return LookupStats.trace(entry, 3, entry == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        // of a mapped image, only the pages that lookups touched take up memory
+        String kind = mapped ? "mapped" : "off-heap";
+        tables.put(kind + " level 1", 4L * level1.capacity());
+        tables.put(kind + " level 2", 4L * level2.capacity());
+        tables.put(kind + " level 3", 4L * level3.capacity());
+    }
+
+    @Override
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        for (int i = 0; i < count; i++) {
+            ports[i] = level1.get(ips[i] >>> 16);
+        }
+        for (int i = 0; i < count; i++) {
+            if (ports[i] < -1) {
+                ports[i] = level2.get(blockOffset(ports[i]) | (ips[i] >>> 8 & 0xff));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (ports[i] < -1) {
+                ports[i] = level3.get(blockOffset(ports[i]) | (ips[i] & 0xff));
+            }
+        }
+    }
+
+    @Override
+    public LookupEngine copy() {
+        // the image is never patched, so it can be shared
+        return this;
+    }
+
+    /**
+     * Copies a level into a direct buffer in native byte order, so reading a slot
+     * is a plain memory load
+     */
+    private static IntBuffer direct(int[] level) {
+        if (level.length > Integer.MAX_VALUE / 4) {
+            throw new IllegalStateException("Level too large for a direct buffer: " + level.length + " slots");
+        }
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * level.length).order(ByteOrder.nativeOrder()).asIntBuffer();
+        buffer.put(level);
+        return buffer;
+    }
+
+    /**
+     * Decodes a slot value into the offset of the block it references
+     */
+    private static int blockOffset(int entry) {
+        return (-2 - entry) << 8;
+    }
+}
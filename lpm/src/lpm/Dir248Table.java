@@ -0,0 +1,415 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * DIR-24-8 lookup table.
+ * <p>
+ * The primary table has one slot for every /24 and holds either the port number of
+ * the longest prefix covering it (-1 if there is none), or a reference to a 256-entry
+ * overflow block for routes longer than /24. Most lookups therefore take a single
+ * memory access and the rest take two.
+ * <p>
+ * Next to every slot the length of the prefix it was expanded from is kept, so
+ * routes can be added and removed by patching only the slots they cover.
+ * <p>
+ * A copy for patching shares everything with the original and copies only what
+ * the patches change: the primary table is split into pages that are copied on
+ * write, and overflow blocks are copied into fresh blocks at the end of the overflow table,
+ * which is shared with the original. The original never references blocks beyond
+ * its own count. The blocks replaced by copies stay behind in the overflow table,
+ * so once they make up half of its blocks the table asks to be rebuilt instead of
+ * patched.
+ * <p>
+ * Paging the primary table trades lookup speed for update speed. A flat table, a
+ * single page of 2^24 slots, keeps the single memory access of the lookups, but
+ * the first patch of a copy that changes a primary slot copies all 64 MB of it,
+ * about 50 ms. Pages of 4096 slots make such a patch copy 16 KB, but put a
+ * dependent read of the page in front of every lookup, which made lookups 25-35%
+ * slower in MatcherBenchmark. The prefix lengths are never read by lookups, so
+ * they are always kept in pages of 4096 slots.
+ */
+class Dir248Table implements LookupEngine {
+    private static final int BLOCK_SIZE = 256;
+
+    // size of the pages of the prefix lengths, and of the primary table if it is paged
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGES = 1 << 24 - PAGE_BITS;
+
+    // number of replaced overflow blocks that is always tolerated before rebuilding
+    private static final int MIN_GARBAGE_BLOCKS = 1024;
+
+    // number of bits of the slot index within a page of the primary table:
+    // PAGE_BITS if the table is paged, 24 for a single flat page
+    private final int primaryBits;
+
+    // primary table, as pages of 2^primaryBits slots indexed by the top 24 bits of
+    // the address
+    private final int[][] primary;
+
+    // the single page of the primary table if it is not paged, null if it is, so that
+    // lookups in a flat table read it directly
+    private int[] flat;
+
+    // whether each page of the primary table and of the prefix lengths is shared
+    // with the table this one was copied from
+    private final boolean[] sharedPrimaryPages;
+    private final boolean[] sharedPages;
+
+    // overflow blocks of 256 slots for the last 8 bits of the address
+    private int[] overflow;
+    private int overflowBlocks = 0;
+
+    // overflow blocks below this index are shared with the table this one was copied from
+    private int sharedBlocks = 0;
+
+    // overflow blocks that were replaced by copies and are no longer referenced
+    private int garbageBlocks = 0;
+
+    // prefix length + 1 of the route each slot was expanded from, 0 if there is none
+    private final byte[][] primaryDepth;
+    private byte[] overflowDepth;
+
+    /**
+     * Builds the table from the routes of the given matcher. Every /8 of the address
+     * space is built in parallel into its own part of the primary table, with its
+     * own overflow blocks, which are then joined.
+     *
+     * @param routes The matcher providing the routes
+     * @param paged  Whether to split the primary table into pages, which makes
+     *               patches cheaper and lookups slower
+     */
+    Dir248Table(LongestPrefixMatcher routes, boolean paged) {
+        primaryBits = paged ? PAGE_BITS : 24;
+        primary = new int[1 << 24 - primaryBits][1 << primaryBits];
+        flat = paged ? null : primary[0];
+        sharedPrimaryPages = new boolean[primary.length];
+        primaryDepth = new byte[PAGES][PAGE_SIZE];
+        sharedPages = new boolean[PAGES];
+
+        RoutePartitions partitions = new RoutePartitions(routes);
+        Dir248Table[] parts = new Dir248Table[RoutePartitions.COUNT];
+        RoutePartitions.forEachPartition(p -> parts[p] = new Dir248Table(this, partitions, p));
+
+        // blocks of each part are placed after those of the parts before it
+        int[] offsets = new int[parts.length + 1];
+        for (int p = 0; p < parts.length; p++) {
+            offsets[p + 1] = offsets[p] + parts[p].overflowBlocks;
+        }
+        overflowBlocks = offsets[parts.length];
+        overflow = new int[overflowBlocks * BLOCK_SIZE];
+        overflowDepth = new byte[overflowBlocks * BLOCK_SIZE];
+
+        RoutePartitions.forEachPartition(p -> {
+            int slots = 1 << 24 - RoutePartitions.BITS;
+            for (int i = p * slots; i < (p + 1) * slots; i += Math.min(slots, 1 << primaryBits)) {
+                int[] page = primary[i >>> primaryBits];
+                int start = i & page.length - 1;
+                for (int j = start; j < start + Math.min(slots, page.length); j++) {
+                    if (page[j] < -1) {
+                        page[j] -= offsets[p];
+                    }
+                }
+            }
+
+            Dir248Table part = parts[p];
+            System.arraycopy(part.overflow, 0, overflow, offsets[p] * BLOCK_SIZE, part.overflowBlocks * BLOCK_SIZE);
+            System.arraycopy(part.overflowDepth, 0, overflowDepth, offsets[p] * BLOCK_SIZE, part.overflowBlocks * BLOCK_SIZE);
+        });
+    }
+
+    /**
+     * Builds one partition of a table: its slots of the shared primary table, and
+     * overflow blocks of its own numbered from 0
+     *
+     * @param table      The table whose primary table is filled in
+     * @param partitions The routes split by partition
+     * @param partition  The index of the partition to build
+     */
+    private Dir248Table(Dir248Table table, RoutePartitions partitions, int partition) {
+        primaryBits = table.primaryBits;
+        primary = table.primary;
+        flat = table.flat;
+        sharedPrimaryPages = table.sharedPrimaryPages;
+        primaryDepth = table.primaryDepth;
+        sharedPages = table.sharedPages;
+        overflow = new int[0];
+        overflowDepth = new byte[0];
+
+        int slots = 1 << 24 - RoutePartitions.BITS;
+        int from = partition * slots;
+        for (int i = from; i < from + slots; i += Math.min(slots, 1 << primaryBits)) {
+            int[] page = primary[i >>> primaryBits];
+            int start = i & page.length - 1;
+            Arrays.fill(page, start, start + Math.min(slots, page.length), -1);
+        }
+
+        // shorter routes are clipped to the partition, which has no overflow blocks yet
+        partitions.forEachShortRoute(partition, (ip, prefixLength, portNumber) ->
+                updatePrimary(from, from + slots, prefixLength, portNumber, (byte) (prefixLength + 1)));
+        partitions.forEachRoute(partition, (ip, prefixLength, portNumber) ->
+                update(ip, prefixLength, portNumber, prefixLength));
+    }
+
+    /**
+     * Creates a copy of another table that shares all pages and blocks with it
+     */
+    private Dir248Table(Dir248Table other) {
+        primaryBits = other.primaryBits;
+        primary = other.primary.clone();
+        flat = other.flat;
+        sharedPrimaryPages = new boolean[primary.length];
+        Arrays.fill(sharedPrimaryPages, true);
+        primaryDepth = other.primaryDepth.clone();
+        sharedPages = new boolean[PAGES];
+        Arrays.fill(sharedPages, true);
+        overflow = other.overflow;
+        overflowDepth = other.overflowDepth;
+        overflowBlocks = other.overflowBlocks;
+        sharedBlocks = overflowBlocks;
+        garbageBlocks = other.garbageBlocks;
+    }
+
+    @Override
+    public LookupEngine copy() {
+        return new Dir248Table(this);
+    }
+
+    @Override
+    public int lookup(int ip) {
+        int entry = primarySlot(ip >>> 8);
+        if (entry >= -1) {
+            return entry;
+        }
+        return overflow[blockOffset(entry) | (ip & 0xff)];
+    }
+
+    @Override
+    public long trace(int ip) {
+        int index = ip >>> 8;
+        int entry = primarySlot(index);
+        if (entry >= -1) {
+            return LookupStats.trace(entry, 1, primaryDepth[index >>> PAGE_BITS][index & PAGE_SIZE - 1] - 1);
+        }
+
+        index = blockOffset(entry) | (ip & 0xff);
+        return LookupStats.trace(overflow[index], 2, overflowDepth[index] - 1);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        tables.put("primary", 5L * PAGES * PAGE_SIZE);
+        tables.put("overflow", 5L * overflow.length);
+    }
+
+    @Override
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        // read the primary slots of the whole batch before following any overflow block;
+        // lookups take at most two reads, and stepping them as lanes like RangeTable
+        // was 25-45% slower than these two plain passes
+        int[] table = flat;
+        if (table != null) {
+            for (int i = 0; i < count; i++) {
+                ports[i] = table[ips[i] >>> 8];
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                ports[i] = primary[ips[i] >>> 8 + PAGE_BITS][ips[i] >>> 8 & PAGE_SIZE - 1];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (ports[i] < -1) {
+                ports[i] = overflow[blockOffset(ports[i]) | (ips[i] & 0xff)];
+            }
+        }
+    }
+
+    @Override
+    public boolean update(int ip, int prefixLength, int portNumber, int matchLength) {
+        if (garbageBlocks > Math.max(MIN_GARBAGE_BLOCKS, overflowBlocks / 2)) {
+            // a rebuild only keeps the blocks that are still referenced
+            return false;
+        }
+
+        byte depth = (byte) (matchLength + 1);
+        if (prefixLength <= 24) {
+            int from = ip >>> 8;
+            updatePrimary(from, from + (1 << 24 - prefixLength), prefixLength, portNumber, depth);
+            return true;
+        }
+
+        // get (or create) the overflow block below the top 24 bits
+        int index = ip >>> 8;
+        int entry = primarySlot(index);
+        byte entryDepth = primaryDepth[index >>> PAGE_BITS][index & PAGE_SIZE - 1];
+        int block = entry >= -1 ? newOverflowBlock(entry, entryDepth) : blockIndex(entry);
+
+        int from = ip & 0xff;
+        block = updateOverflow(block, from, from + (1 << 32 - prefixLength), prefixLength, portNumber, depth);
+        if (entry != reference(block)) {
+            setPrimary(index, reference(block), entryDepth);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the port of the primary slots in [from, to) that do not match
+     * a route longer than prefixLength, descending into their overflow blocks
+     */
+    private void updatePrimary(int from, int to, int prefixLength, int portNumber, byte depth) {
+        for (int i = from; i < to; ) {
+            int page = i >>> PAGE_BITS;
+            int end = Math.min(to, page + 1 << PAGE_BITS);
+            if (sharedPages[page] || sharedPrimaryPages[i >>> primaryBits]) {
+                // the first change copies the pages
+                for (; i < end; i++) {
+                    int entry = primarySlot(i);
+                    byte slotDepth = primaryDepth[page][i & PAGE_SIZE - 1];
+                    if (entry < -1) {
+                        int block = blockIndex(entry);
+                        int updated = updateOverflow(block, 0, BLOCK_SIZE, prefixLength, portNumber, depth);
+                        if (updated != block) {
+                            setPrimary(i, reference(updated), slotDepth);
+                        }
+                    } else if (slotDepth <= prefixLength + 1 && (entry != portNumber || slotDepth != depth)) {
+                        setPrimary(i, portNumber, depth);
+                    }
+                }
+                continue;
+            }
+
+            // the pages are private, which is always the case while building
+            int[] slots = primary[i >>> primaryBits];
+            byte[] depths = primaryDepth[page];
+            int mask = slots.length - 1;
+            for (; i < end; i++) {
+                int entry = slots[i & mask];
+                if (entry < -1) {
+                    int block = updateOverflow(blockIndex(entry), 0, BLOCK_SIZE, prefixLength, portNumber, depth);
+                    slots[i & mask] = reference(block);
+                } else if (depths[i & PAGE_SIZE - 1] <= prefixLength + 1) {
+                    slots[i & mask] = portNumber;
+                    depths[i & PAGE_SIZE - 1] = depth;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the port of the slots in [from, to) of an overflow block that do not
+     * match a route longer than prefixLength
+     *
+     * @return The index of the block, which differs from the given one if it had
+     * to be copied
+     */
+    private int updateOverflow(int block, int from, int to, int prefixLength, int portNumber, byte depth) {
+        for (int i = from; i < to; i++) {
+            byte slotDepth = overflowDepth[block << 8 | i];
+            if (slotDepth <= prefixLength + 1 && (overflow[block << 8 | i] != portNumber || slotDepth != depth)) {
+                block = writableOverflowBlock(block);
+                overflow[block << 8 | i] = portNumber;
+                overflowDepth[block << 8 | i] = depth;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Gets a slot of the primary table
+     *
+     * @param index The top 24 bits of the address
+     */
+    private int primarySlot(int index) {
+        int[] table = flat;
+        return table != null ? table[index] : primary[index >>> PAGE_BITS][index & PAGE_SIZE - 1];
+    }
+
+    /**
+     * Sets a primary slot, copying its page and the page of its prefix length
+     * first if they are shared
+     */
+    private void setPrimary(int index, int entry, byte depth) {
+        int page = index >>> primaryBits;
+        if (sharedPrimaryPages[page]) {
+            primary[page] = primary[page].clone();
+            sharedPrimaryPages[page] = false;
+            if (flat != null) {
+                flat = primary[page];
+            }
+        }
+        primary[page][index & (1 << primaryBits) - 1] = entry;
+
+        page = index >>> PAGE_BITS;
+        if (sharedPages[page]) {
+            primaryDepth[page] = primaryDepth[page].clone();
+            sharedPages[page] = false;
+        }
+        primaryDepth[page][index & PAGE_SIZE - 1] = depth;
+    }
+
+    /**
+     * Gets an overflow block that can be changed: the block itself, or a copy
+     * if it is shared
+     *
+     * @return The index of the block or its copy
+     */
+    private int writableOverflowBlock(int block) {
+        if (block >= sharedBlocks) {
+            return block;
+        }
+        int copy = allocateOverflowBlock();
+        garbageBlocks++;
+        System.arraycopy(overflow, block << 8, overflow, copy << 8, BLOCK_SIZE);
+        System.arraycopy(overflowDepth, block << 8, overflowDepth, copy << 8, BLOCK_SIZE);
+        return copy;
+    }
+
+    /**
+     * Allocates an overflow block with all slots set to the given port
+     *
+     * @return The index of the new block
+     */
+    private int newOverflowBlock(int portNumber, byte depth) {
+        int block = allocateOverflowBlock();
+        Arrays.fill(overflow, block << 8, (block + 1) << 8, portNumber);
+        Arrays.fill(overflowDepth, block << 8, (block + 1) << 8, depth);
+        return block;
+    }
+
+    /**
+     * Appends an uninitialized block to the overflow table, growing its arrays if needed
+     *
+     * @return The index of the new block
+     */
+    private int allocateOverflowBlock() {
+        if ((overflowBlocks + 1) * BLOCK_SIZE > overflow.length) {
+            int length = Math.max(overflow.length * 2, BLOCK_SIZE * 64);
+            overflow = Arrays.copyOf(overflow, length);
+            overflowDepth = Arrays.copyOf(overflowDepth, length);
+        }
+        return overflowBlocks++;
+    }
+
+    /**
+     * Encodes a block index as a slot value; ports are never below -1
+     */
+    private static int reference(int block) {
+        return -2 - block;
+    }
+
+    /**
+     * Decodes a slot value into the index of the block it references
+     */
+    private static int blockIndex(int entry) {
+        return -2 - entry;
+    }
+
+    /**
+     * Decodes a slot value into the offset of the block it references
+     */
+    private static int blockOffset(int entry) {
+        return blockIndex(entry) << 8;
+    }
+}
@@ -0,0 +1,271 @@
+package lpm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Set-associative cache of recent lookup results in front of another lookup structure.
+ * <p>
+ * Every address maps to a set of 4 entries; when a set is full, the entry to replace
+ * is chosen with the CLOCK algorithm: a hand sweeps over the set, giving entries that
+ * were used since its last pass a second chance. An entry packs the address and its
+ * port into a single long, which lookups from many threads read and write atomically
+ * without locking.
+ * <p>
+ * The cache outlives the snapshots of the lookup structure behind it. Route changes
+ * are reported with routeChanged; when their snapshot is published, only the cached
+ * addresses that the changed prefixes cover are evicted, and the arrays are reused.
+ * A lookup that missed on the old snapshot and stores its result after the eviction
+ * sees that the snapshot was replaced and takes its entry back. The matcher
+ * patches and copies the snapshots behind the cache, never the cache itself.
+ */
+class FlowCache implements LookupEngine {
+    private static final int WAYS = 4;
+
+    // port half of an unused entry; real ports are never this low
+    private static final int EMPTY_PORT = Integer.MIN_VALUE;
+    private static final long EMPTY = EMPTY_PORT & 0xffffffffL;
+
+    // number of pending route changes evicted one by one; beyond it the whole cache is emptied
+    private static final int MAX_CHANGES = 64;
+
+    private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle REFERENCED = MethodHandles.arrayElementVarHandle(boolean[].class);
+
+    // the snapshot answering the misses
+    private volatile LookupEngine engine;
+    private final FlowCacheStats stats;
+
+    // (address << 32 | port) entries, WAYS consecutive entries per set
+    private final long[] entries;
+
+    // CLOCK state: whether an entry was used since the hand passed it, and the hand of every set
+    private final boolean[] referenced;
+    private final byte[] hands;
+    private final int setMask;
+
+    // prefixes changed since the last publication, only used by the thread changing routes;
+    // a count above MAX_CHANGES means that everything is evicted
+    private final int[] changedNetworks = new int[MAX_CHANGES];
+    private final int[] changedLengths = new int[MAX_CHANGES];
+    private int changes = 0;
+
+    /**
+     * Creates an empty cache, which can be used once reset put a snapshot behind it
+     *
+     * @param size  The number of cached addresses, rounded up to a power of two
+     *              and to at least one set
+     * @param stats The counters to update
+     */
+    FlowCache(int size, FlowCacheStats stats) {
+        int sets = 1;
+        while ((long) sets * WAYS < size) {
+            sets <<= 1;
+        }
+        this.stats = stats;
+        entries = new long[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        hands = new byte[sets];
+        setMask = sets - 1;
+        Arrays.fill(entries, EMPTY);
+    }
+
+    @Override
+    public int lookup(int ip) {
+        int set = hash(ip) & setMask;
+        int first = set * WAYS;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            long entry = (long) ENTRIES.getOpaque(entries, slot);
+            if ((int) (entry >>> 32) == ip && (int) entry != EMPTY_PORT) {
+                // only write the bit when it changes, so hits do not keep dirtying the cache line
+                if (!(boolean) REFERENCED.getOpaque(referenced, slot)) {
+                    REFERENCED.setOpaque(referenced, slot, true);
+                }
+                stats.hits.increment();
+                return (int) entry;
+            }
+        }
+
+        stats.misses.increment();
+        LookupEngine snapshot = engine;
+        int portNumber = snapshot.lookup(ip);
+        insert(set, ip, portNumber, snapshot);
+        return portNumber;
+    }
+
+    @Override
+    public long trace(int ip) {
+        return engine.trace(ip);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        engine.addTableBytes(tables);
+        tables.put("flow cache", 9L * entries.length + hands.length);
+    }
+
+    @Override
+    public LookupEngine copy() {
+        throw new UnsupportedOperationException("the cache evicts changed prefixes instead of being copied");
+    }
+
+    /**
+     * Records a route change of the snapshot that will be published next, so that
+     * publish can evict the addresses it covers
+     *
+     * @param network      The first address of the changed prefix
+     * @param prefixLength The length of the changed prefix
+     */
+    void routeChanged(int network, int prefixLength) {
+        if (changes < MAX_CHANGES) {
+            changedNetworks[changes] = network;
+            changedLengths[changes] = prefixLength;
+        }
+        changes++;
+    }
+
+    /**
+     * Puts a new snapshot behind the cache and evicts the cached addresses covered by
+     * the route changes recorded since the last publication
+     *
+     * @param engine The new snapshot
+     */
+    void publish(LookupEngine engine) {
+        // the snapshot is replaced first, so that lookups on the old one notice it
+        this.engine = engine;
+        if (changes > MAX_CHANGES) {
+            evictAll();
+        } else {
+            evictChanged();
+        }
+        changes = 0;
+    }
+
+    /**
+     * Puts a new snapshot behind the cache and evicts every cached address, for
+     * snapshots built from scratch
+     *
+     * @param engine The new snapshot
+     */
+    void reset(LookupEngine engine) {
+        this.engine = engine;
+        evictAll();
+        changes = 0;
+    }
+
+    /**
+     * Puts a snapshot giving the same results, like one with a statistics recorder
+     * in front of it, behind the cache without evicting anything
+     *
+     * @param engine The new snapshot
+     */
+    void replace(LookupEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Evicts the addresses covered by the recorded changes. Prefixes covering fewer
+     * addresses than there are sets are evicted address by address, the others by
+     * one pass over all entries.
+     */
+    private void evictChanged() {
+        int wide = 0;
+        for (int i = 0; i < changes; i++) {
+            int network = changedNetworks[i];
+            int prefixLength = changedLengths[i];
+            if (prefixLength > 0 && (1L << 32 - prefixLength) <= setMask) {
+                for (int j = 0; j < 1 << 32 - prefixLength; j++) {
+                    int ip = network + j;
+                    int first = (hash(ip) & setMask) * WAYS;
+                    for (int slot = first; slot < first + WAYS; slot++) {
+                        evictIf(slot, ip);
+                    }
+                }
+            } else {
+                changedNetworks[wide] = network;
+                changedLengths[wide] = prefixLength;
+                wide++;
+            }
+        }
+
+        if (wide > 0) {
+            for (int slot = 0; slot < entries.length; slot++) {
+                int ip = (int) ((long) ENTRIES.getVolatile(entries, slot) >>> 32);
+                for (int i = 0; i < wide; i++) {
+                    if (((ip ^ changedNetworks[i]) & prefixMask(changedLengths[i])) == 0) {
+                        evictIf(slot, ip);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts every cached address
+     */
+    private void evictAll() {
+        for (int slot = 0; slot < entries.length; slot++) {
+            long entry = (long) ENTRIES.getVolatile(entries, slot);
+            evictIf(slot, (int) (entry >>> 32));
+        }
+    }
+
+    /**
+     * Empties an entry if it caches the given address, counting it as an invalidation
+     */
+    private void evictIf(int slot, int ip) {
+        long entry = (long) ENTRIES.getVolatile(entries, slot);
+        if ((int) entry != EMPTY_PORT && (int) (entry >>> 32) == ip
+                && ENTRIES.compareAndSet(entries, slot, entry, EMPTY)) {
+            stats.invalidations.increment();
+        }
+    }
+
+    private static int prefixMask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << 32 - prefixLength;
+    }
+
+    /**
+     * Stores a lookup result, evicting an entry of the set if it is full. Concurrent
+     * inserts into the same set may overwrite each other, which only costs a miss.
+     * If the snapshot the result came from has been replaced meanwhile, the entry is
+     * taken back, as the eviction for the new snapshot may have missed it.
+     */
+    private void insert(int set, int ip, int portNumber, LookupEngine snapshot) {
+        int first = set * WAYS;
+        int hand = hands[set];
+        for (int step = 0; step < 2 * WAYS; step++) {
+            int slot = first + hand;
+            hand = (hand + 1) % WAYS;
+
+            if ((boolean) REFERENCED.getOpaque(referenced, slot)) {
+                // second chance: clear the bit and look at the next entry
+                REFERENCED.setOpaque(referenced, slot, false);
+                continue;
+            }
+
+            if ((int) (long) ENTRIES.getOpaque(entries, slot) != EMPTY_PORT) {
+                stats.evictions.increment();
+            }
+            long entry = (long) ip << 32 | portNumber & 0xffffffffL;
+            // the volatile store and read order the entry against the publication of a snapshot
+            ENTRIES.setVolatile(entries, slot, entry);
+            if (engine != snapshot) {
+                ENTRIES.compareAndSet(entries, slot, entry, EMPTY);
+            }
+            break;
+        }
+        hands[set] = (byte) hand;
+    }
+
+    /**
+     * Spreads the address bits over the set index (Fibonacci hashing)
+     */
+    private static int hash(int ip) {
+        int h = ip * 0x9e3779b9;
+        return h ^ h >>> 16;
+    }
+}
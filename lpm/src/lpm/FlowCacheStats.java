@@ -0,0 +1,69 @@
+package lpm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the flow cache in front of a {@link LongestPrefixMatcher}.
+ * The counters are striped, so lookups from many threads do not contend on them.
+ */
+public class FlowCacheStats {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Gets the number of lookups answered from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to go to the lookup structure
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of cached addresses that were replaced by another one
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of cached addresses evicted because routes changed
+     */
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Gets the share of lookups answered from the cache
+     *
+     * @return The hit rate between 0 and 1, or 0 if there were no lookups
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Resets all counters to zero
+     */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        invalidations.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits: %d, misses: %d (hit rate %.1f%%), evictions: %d, invalidations: %d",
+                hits(), misses(), 100 * hitRate(), evictions(), invalidations());
+    }
+}
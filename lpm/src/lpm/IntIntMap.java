@@ -0,0 +1,215 @@
+package lpm;
+
+/**
+ * Map from int keys to int values without boxing.
+ * <p>
+ * Uses open addressing with linear probing over power-of-two sized arrays, kept
+ * at most half full. Missing keys are reported with the MISSING sentinel, so a
+ * lookup is a single probe sequence instead of containsKey followed by get.
+ */
+class IntIntMap {
+    /**
+     * Value returned for keys that are not in the map; it cannot be stored
+     */
+    static final int MISSING = Integer.MIN_VALUE;
+
+    // key marking an empty slot; the entry for this key itself is kept aside
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    // the entry with key FREE, which cannot be stored in the arrays
+    private boolean hasFreeKey = false;
+    private int freeValue = MISSING;
+
+    IntIntMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a map that can hold the given number of entries without resizing
+     */
+    IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, 2 * expectedSize) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Creates a copy of another map
+     */
+    IntIntMap(IntIntMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        mask = other.mask;
+        size = other.size;
+        hasFreeKey = other.hasFreeKey;
+        freeValue = other.freeValue;
+    }
+
+    /**
+     * Gets the value of a key
+     *
+     * @return The value, or MISSING if the key is not in the map
+     */
+    int get(int key) {
+        if (key == FREE) {
+            return freeValue;
+        }
+        for (int slot = hash(key) & mask; ; slot = slot + 1 & mask) {
+            int k = keys[slot];
+            if (k == key) {
+                return values[slot];
+            }
+            if (k == FREE) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a key
+     *
+     * @return The previous value, or MISSING if the key was not in the map
+     */
+    int put(int key, int value) {
+        if (key == FREE) {
+            int previous = freeValue;
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeValue = value;
+            return previous;
+        }
+
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = slot + 1 & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length / 2) {
+            resize(keys.length * 2);
+        }
+        return MISSING;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @return The removed value, or MISSING if the key was not in the map
+     */
+    int remove(int key) {
+        if (key == FREE) {
+            int previous = freeValue;
+            if (hasFreeKey) {
+                hasFreeKey = false;
+                freeValue = MISSING;
+                size--;
+            }
+            return previous;
+        }
+
+        int slot = hash(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == FREE) {
+                return MISSING;
+            }
+            slot = slot + 1 & mask;
+        }
+        int previous = values[slot];
+        size--;
+
+        // shift back the following entries of the probe sequence, so no tombstone is needed
+        int gap = slot;
+        for (int next = gap + 1 & mask; keys[next] != FREE; next = next + 1 & mask) {
+            int home = hash(keys[next]) & mask;
+            // the entry may move into the gap only if the gap lies between its home and itself
+            if ((next - home & mask) >= (next - gap & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = FREE;
+        return previous;
+    }
+
+    /**
+     * Gets the number of bytes retained by the key and value arrays
+     */
+    long bytes() {
+        return 8L * keys.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Passes every entry to the given consumer, in no particular order
+     */
+    void forEach(EntryConsumer consumer) {
+        if (hasFreeKey) {
+            consumer.accept(FREE, freeValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Rehashes all entries into arrays of the given capacity
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != FREE) {
+                    slot = slot + 1 & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of a key (the MurmurHash3 finalizer)
+     */
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+    /**
+     * Receives the entries of a map
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(int key, int value);
+    }
+}
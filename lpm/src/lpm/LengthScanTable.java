@@ -0,0 +1,149 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * One hash table per prefix length, probed from the longest length down.
+ * <p>
+ * This is the straightforward layout the matcher keeps its routes in, as a
+ * separate snapshot so it can serve as a baseline for the other backends.
+ * Lengths without routes are skipped.
+ * <p>
+ * The routes of every length are split over several tables by a hash of their
+ * prefix, so a copy for patching shares all tables with the original and only
+ * copies the ones the patches change.
+ */
+class LengthScanTable implements LookupEngine {
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
+
+    // prefix -> port tables, indexed by prefix length and shard of the prefix
+    private final IntIntMap[][] tables = new IntIntMap[33][];
+
+    // whether each table is shared with the table this one was copied from
+    private final boolean[][] sharedTables = new boolean[33][SHARDS];
+
+    // the prefix lengths that have routes, longest first
+    private int[] lengths;
+
+    /**
+     * Builds the tables from the routes of the given matcher.
+     *
+     * @param routes The matcher providing the routes
+     */
+    LengthScanTable(LongestPrefixMatcher routes) {
+        for (int length = 0; length <= 32; length++) {
+            tables[length] = new IntIntMap[SHARDS];
+            for (int shard = 0; shard < SHARDS; shard++) {
+                tables[length][shard] = new IntIntMap();
+            }
+        }
+        routes.forEachRoute((ip, prefixLength, portNumber) -> {
+            int prefix = LongestPrefixMatcher.prefixOf(ip, prefixLength);
+            tables[prefixLength][shard(prefix)].put(prefix, portNumber);
+        });
+        updateLengths();
+    }
+
+    /**
+     * Creates a copy of another table that shares all tables with it
+     */
+    private LengthScanTable(LengthScanTable other) {
+        for (int length = 0; length <= 32; length++) {
+            tables[length] = other.tables[length].clone();
+            Arrays.fill(sharedTables[length], true);
+        }
+        lengths = other.lengths;
+    }
+
+    @Override
+    public int lookup(int ip) {
+        for (int length : lengths) {
+            int prefix = LongestPrefixMatcher.prefixOf(ip, length);
+            int portNumber = tables[length][shard(prefix)].get(prefix);
+            if (portNumber != IntIntMap.MISSING) {
+                return portNumber;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long trace(int ip) {
+        int probes = 0;
+        for (int length : lengths) {
+            probes++;
+            int prefix = LongestPrefixMatcher.prefixOf(ip, length);
+            int portNumber = tables[length][shard(prefix)].get(prefix);
+            if (portNumber != IntIntMap.MISSING) {
+                return LookupStats.trace(portNumber, probes, length);
+            }
+        }
+        return LookupStats.trace(-1, probes, -1);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        long bytes = 0;
+        for (IntIntMap[] shards : this.tables) {
+            for (IntIntMap table : shards) {
+                bytes += table.bytes();
+            }
+        }
+        tables.put("prefix tables", bytes);
+    }
+
+    @Override
+    public boolean update(int ip, int prefixLength, int portNumber, int matchLength) {
+        int prefix = LongestPrefixMatcher.prefixOf(ip, prefixLength);
+        int shard = shard(prefix);
+        if (sharedTables[prefixLength][shard]) {
+            tables[prefixLength][shard] = new IntIntMap(tables[prefixLength][shard]);
+            sharedTables[prefixLength][shard] = false;
+        }
+
+        if (matchLength == prefixLength) {
+            tables[prefixLength][shard].put(prefix, portNumber);
+        } else {
+            tables[prefixLength][shard].remove(prefix);
+        }
+        updateLengths();
+        return true;
+    }
+
+    @Override
+    public LookupEngine copy() {
+        return new LengthScanTable(this);
+    }
+
+    /**
+     * Collects the prefix lengths that have routes
+     */
+    private void updateLengths() {
+        boolean[] used = new boolean[33];
+        int count = 0;
+        for (int length = 0; length <= 32; length++) {
+            for (IntIntMap table : tables[length]) {
+                used[length] |= table.size() > 0;
+            }
+            if (used[length]) {
+                count++;
+            }
+        }
+
+        lengths = new int[count];
+        for (int length = 32, i = 0; length >= 0; length--) {
+            if (used[length]) {
+                lengths[i++] = length;
+            }
+        }
+    }
+
+    /**
+     * Gets the table of a prefix among those of its length (Fibonacci hashing)
+     */
+    private static int shard(int prefix) {
+        return prefix * 0x9e3779b9 >>> 32 - SHARD_BITS;
+    }
+}
@@ -0,0 +1,253 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Binary search on prefix lengths (Waldvogel et al., SIGCOMM 1997).
+ * <p>
+ * All prefixes are stored in one open-addressing hash table keyed by length and
+ * prefix. A lookup does a binary search over the prefix lengths that occur in the
+ * table: a hit means a longer match may exist, a miss means it cannot. To make that
+ * hold, every prefix leaves a marker at the shorter lengths where the search has to
+ * continue to longer lengths to find it. Each entry stores the port of the best
+ * matching real prefix, so a lookup never has to backtrack. With up to 31 distinct
+ * lengths this takes at most 5 hash probes, and at most 6 otherwise.
+ */
+class LengthSearchTable implements LookupEngine {
+    private static final long EMPTY = -1L;
+
+    // distinct prefix lengths in the table, in ascending order, excluding /0
+    private final int[] lengths;
+
+    // port of the /0 route, -1 if there is none
+    private final int defaultPort;
+
+    // open addressing table with linear probing, keys are (length << 32 | prefix)
+    private final long[] keys;
+    private final int[] ports;
+    private final int mask;
+
+    // length of the real prefix each entry's port belongs to, -1 if there is none
+    private final byte[] matchLengths;
+
+    /**
+     * Builds the table from the routes of the given matcher.
+     *
+     * @param routes The matcher providing the routes
+     */
+    LengthSearchTable(LongestPrefixMatcher routes) {
+        RouteList real = new RouteList();
+        routes.forEachRoute((ip, prefixLength, portNumber) ->
+                real.add(key(prefixLength, prefixLength == 0 ? 0 : ip >>> 32 - prefixLength), portNumber));
+
+        // the /0 route is where every search starts, instead of a table entry
+        boolean[] present = new boolean[33];
+        int port0 = -1;
+        for (int i = 0; i < real.size; i++) {
+            int length = (int) (real.keys[i] >>> 32);
+            present[length] = true;
+            if (length == 0) {
+                port0 = real.ports[i];
+            }
+        }
+        defaultPort = port0;
+
+        int distinct = 0;
+        for (int length = 1; length <= 32; length++) {
+            if (present[length]) {
+                distinct++;
+            }
+        }
+        lengths = new int[distinct];
+        for (int length = 1, i = 0; length <= 32; length++) {
+            if (present[length]) {
+                lengths[i++] = length;
+            }
+        }
+
+        // every route leaves markers on its search path, at most one per level
+        RouteList markers = new RouteList();
+        for (int i = 0; i < real.size; i++) {
+            int length = (int) (real.keys[i] >>> 32);
+            if (length == 0) {
+                continue;
+            }
+
+            int target = Arrays.binarySearch(lengths, length);
+            int low = 0;
+            int high = lengths.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (middle == target) {
+                    break;
+                }
+                if (middle < target) {
+                    int prefix = (int) real.keys[i] >>> length - lengths[middle];
+                    markers.add(key(lengths[middle], prefix), -1);
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(16, 2 * (real.size + markers.size)) - 1) << 1;
+        keys = new long[capacity];
+        ports = new int[capacity];
+        matchLengths = new byte[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < real.size; i++) {
+            if (real.keys[i] >>> 32 != 0) {
+                put(real.keys[i], real.ports[i], (int) (real.keys[i] >>> 32));
+            }
+        }
+
+        // resolve the best matching real prefix of every marker before any marker is stored
+        int[] markerLengths = new int[markers.size];
+        for (int i = 0; i < markers.size; i++) {
+            int slot = bestRealMatch(markers.keys[i]);
+            markers.ports[i] = slot >= 0 ? ports[slot] : defaultPort;
+            markerLengths[i] = slot >= 0 ? (int) (keys[slot] >>> 32) : defaultPort == -1 ? -1 : 0;
+        }
+        for (int i = 0; i < markers.size; i++) {
+            if (find(markers.keys[i]) < 0) {
+                put(markers.keys[i], markers.ports[i], markerLengths[i]);
+            }
+        }
+    }
+
+    @Override
+    public int lookup(int ip) {
+        int best = defaultPort;
+        int low = 0;
+        int high = lengths.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int length = lengths[middle];
+            int slot = find(key(length, ip >>> 32 - length));
+            if (slot >= 0) {
+                best = ports[slot];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public long trace(int ip) {
+        int best = defaultPort;
+        int bestLength = defaultPort == -1 ? -1 : 0;
+        int probes = 0;
+        int low = 0;
+        int high = lengths.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int length = lengths[middle];
+            int slot = find(key(length, ip >>> 32 - length));
+            probes++;
+            if (slot >= 0) {
+                best = ports[slot];
+                bestLength = matchLengths[slot];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return LookupStats.trace(best, probes, bestLength);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        tables.put("hash table", 13L * keys.length);
+    }
+
+    @Override
+    public LookupEngine copy() {
+        // the table is never patched, so it can be shared
+        return this;
+    }
+
+    /**
+     * Finds the longest real prefix covering a marker. Only real prefixes are
+     * stored in the table while this is used.
+     *
+     * @return The slot of the prefix, or -1 if only the /0 route covers the marker
+     */
+    private int bestRealMatch(long markerKey) {
+        int markerLength = (int) (markerKey >>> 32);
+        int markerPrefix = (int) markerKey;
+        for (int i = Arrays.binarySearch(lengths, markerLength); i >= 0; i--) {
+            int slot = find(key(lengths[i], markerPrefix >>> markerLength - lengths[i]));
+            if (slot >= 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the slot of a key
+     *
+     * @return The slot, or -1 if the key is not in the table
+     */
+    private int find(long key) {
+        for (int slot = hash(key) & mask; ; slot = slot + 1 & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Stores a key that is not in the table yet
+     */
+    private void put(long key, int portNumber, int matchLength) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            slot = slot + 1 & mask;
+        }
+        keys[slot] = key;
+        ports[slot] = portNumber;
+        matchLengths[slot] = (byte) matchLength;
+    }
+
+    private static long key(int prefixLength, int prefix) {
+        return (long) prefixLength << 32 | prefix & 0xffffffffL;
+    }
+
+    /**
+     * Mixes the bits of a key (the MurmurHash3 finalizer)
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Growable list of keys with their ports
+     */
+    private static class RouteList {
+        long[] keys = new long[1024];
+        int[] ports = new int[1024];
+        int size = 0;
+
+        void add(long key, int portNumber) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                ports = Arrays.copyOf(ports, size * 2);
+            }
+            keys[size] = key;
+            ports[size++] = portNumber;
+        }
+    }
+}
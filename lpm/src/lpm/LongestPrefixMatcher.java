@@ -15,18 +15,95 @@
 
 package lpm;
 
-import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Longest prefix matcher for IPv4 routes.
+ * <p>
+ * Once finalizeRoutes has been called, lookups can be done from many threads
+ * while another thread changes routes. Lookups use an immutable snapshot of the
+ * lookup structure; route changes are applied to a private copy, which then
+ * replaces the snapshot atomically, so lookups never block. The copy only
+ * duplicates the parts of the structure that the changes touch. Route changes are
+ * serialized and should be grouped with updateRoutes to share a single copy.
+ */
 public class LongestPrefixMatcher {
     // variable storing maps of ip prefixes with their ports according to the prefix length
-    private final List<Map<Integer, Integer>> routes = new ArrayList<>();
+    private final IntIntMap[] routes = new IntIntMap[33];
+
+    // the kind of lookup structure built by finalizeRoutes
+    private final Backend backend;
+
+    // cache of lookup results in front of the lookup structure, null if there is none
+    private final FlowCache flowCache;
+    private final FlowCacheStats flowCacheStats;
+
+    // snapshot of the lookup structure built by finalizeRoutes, null while routes are being added;
+    // it is replaced as a whole and never modified once assigned, except that with a flow cache
+    // this is the cache, which replaces the snapshot behind it
+    private volatile LookupEngine engine;
+
+    // the lookup structure of the snapshot, without the statistics recorder and flow cache
+    private LookupEngine core;
+
+    // private copy of the snapshot with the route changes that have not been published yet,
+    // sharing the parts they did not touch with the snapshot
+    private LookupEngine draft;
+
+    // whether the pending route changes could not be patched and the structure has to be rebuilt
+    private boolean rebuild = false;
+
+    // number of nested updateRoutes calls, changes are published when the outermost one ends
+    private int batchDepth = 0;
+
+    // counters of the lookups, only updated while recording
+    private final LookupStats lookupStats = new LookupStats();
+    private boolean recording = false;
+
+    // whether the lookup structure is built from an aggregated copy of the routes
+    private boolean aggregate = false;
+
+    // number of routes the last aggregation saved
+    private int aggregationSavings = 0;
+
+    // routes of a loaded snapshot image that have not been added to the routing tables yet
+    private IntBuffer snapshotRoutes;
 
     /**
-     * You can use this function to initialize variables.
+     * Creates a matcher that builds a multibit trie when its routes are finalized.
      */
     public LongestPrefixMatcher() {
-        for (int i = 32; i >= 0; i--) {
-            routes.add(new HashMap<>());
+        this(Backend.MULTIBIT_TRIE);
+    }
+
+    /**
+     * Creates a matcher that builds the given lookup structure when its routes are finalized.
+     *
+     * @param backend The lookup structure to build in finalizeRoutes
+     */
+    public LongestPrefixMatcher(Backend backend) {
+        this(backend, 0);
+    }
+
+    /**
+     * Creates a matcher that builds the given lookup structure when its routes are
+     * finalized, with a cache of recent lookup results in front of it. The cache pays
+     * off when traffic is concentrated on a limited set of destinations; route
+     * changes evict the cached addresses that the changed prefixes cover.
+     *
+     * @param backend       The lookup structure to build in finalizeRoutes
+     * @param flowCacheSize The number of addresses to cache, 0 for no cache
+     */
+    public LongestPrefixMatcher(Backend backend, int flowCacheSize) {
+        this.backend = backend;
+        this.flowCacheStats = flowCacheSize > 0 ? new FlowCacheStats() : null;
+        this.flowCache = flowCacheSize > 0 ? new FlowCache(flowCacheSize, flowCacheStats) : null;
+        for (int i = 0; i <= 32; i++) {
+            routes[i] = new IntIntMap();
         }
     }
 
@@ -37,15 +114,19 @@ public class LongestPrefixMatcher {
      * @return The port number this IP maps to
      */
     public int lookup(int ip) {
-        for (byte i = 32; i > 0; i--) {
-            // get ip prefix of the longest possible value
-            int prefix = ip >> 32 - i;
+        LookupEngine snapshot = engine;
+        if (snapshot != null) {
+            return snapshot.lookup(ip);
+        }
 
-            // check if there is such ip prefix pointing to the next node
-            if (routes.get(i).containsKey(prefix)) {
+        for (byte i = 32; i >= 0; i--) {
+            // get ip prefix of the longest possible value
+            int prefix = prefixOf(ip, i);
 
-                // return port number of the given ip prefix
-                return routes.get(i).get(prefix);
+            // return port number of the given ip prefix if there is one
+            int portNumber = routes[i].get(prefix);
+            if (portNumber != IntIntMap.MISSING) {
+                return portNumber;
             }
         }
 
@@ -53,6 +134,27 @@ public class LongestPrefixMatcher {
         return -1;
     }
 
+    /**
+     * Looks up a batch of IP addresses in the routing tables. This is faster than
+     * calling lookup for every address, because the memory accesses of the
+     * addresses in the batch overlap.
+     *
+     * @param ips   The IP addresses to be looked up in integer representation
+     * @param ports The array receiving the port number each IP maps to
+     * @param count The number of addresses to look up
+     */
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        LookupEngine snapshot = engine;
+        if (snapshot != null) {
+            snapshot.lookupBatch(ips, ports, count);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            ports[i] = lookup(ips[i]);
+        }
+    }
+
     /**
      * Adds a route to the routing tables
      *
@@ -62,11 +164,56 @@ public class LongestPrefixMatcher {
      * @param portNumber   The port number the IP block should route to
      */
     public void addRoute(int ip, byte prefixLength, int portNumber) {
+        updateRoute(ip, prefixLength, portNumber);
+    }
+
+    /**
+     * Adds a route or changes the port of an existing one. After finalizeRoutes,
+     * the lookup structure is patched in place where the backend supports it.
+     *
+     * @param ip           The IP the block starts at in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     *                     of the address range (notation ip/prefixLength)
+     * @param portNumber   The port number the IP block should route to
+     */
+    public synchronized void updateRoute(int ip, byte prefixLength, int portNumber) {
+        loadSnapshotRoutes();
+
         // get ip prefix by shifting its binary representation to the right by prefix length
-        int prefix = ip >> 32 - prefixLength;
+        int prefix = prefixOf(ip, prefixLength);
 
         // store ip prefix pointing to its corresponding port number
-        routes.get(prefixLength).put(prefix, portNumber);
+        routes[prefixLength].put(prefix, portNumber);
+
+        if (engine != null) {
+            patch(ip, prefixLength, portNumber, prefixLength);
+        }
+    }
+
+    /**
+     * Withdraws a route. After finalizeRoutes, the lookup structure is patched
+     * in place where the backend supports it.
+     *
+     * @param ip           The IP the block starts at in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     * @return Whether the route existed
+     */
+    public synchronized boolean removeRoute(int ip, byte prefixLength) {
+        loadSnapshotRoutes();
+        if (routes[prefixLength].remove(prefixOf(ip, prefixLength)) == IntIntMap.MISSING) {
+            return false;
+        }
+
+        if (engine != null) {
+            // the addresses of the route now match the longest shorter route, if any
+            int length = prefixLength - 1;
+            int portNumber = -1;
+            while (length >= 0 && (portNumber = routes[length].get(prefixOf(ip, length))) == IntIntMap.MISSING) {
+                length--;
+            }
+            patch(ip, prefixLength, length >= 0 ? portNumber : -1, length);
+        }
+        return true;
     }
 
     /**
@@ -74,34 +221,297 @@ public class LongestPrefixMatcher {
      * You don't have to use this method but can use it to sort or otherwise
      * organize the routing information, if your datastructure requires this.
      */
-    public void finalizeRoutes() {
-        // TODO: Optionally do something     
+    public synchronized void finalizeRoutes() {
+        finalizeRoutes(false);
     }
 
     /**
-     * Converts an integer representation IP to the human readable form
+     * Builds the lookup structure, optionally from an aggregated table: sibling
+     * prefixes with the same port are merged and routes that repeat the port of a
+     * shorter route are dropped, without changing the result of any lookup. The
+     * aggregated table gives a smaller and shallower structure, but route changes
+     * always rebuild it.
      *
-     * @param ip The IP address to convert
-     * @return The String representation for the IP (as xxx.xxx.xxx.xxx)
+     * @param aggregate Whether to aggregate the routes first
      */
-    private String ipToHuman(int ip) {
-        return (ip >> 24 & 0xff) + "." + (ip >> 16 & 0xff) + "." + (ip >> 8 & 0xff) + "." + (ip & 0xff);
+    public synchronized void finalizeRoutes(boolean aggregate) {
+        loadSnapshotRoutes();
+        this.aggregate = aggregate;
+        core = build();
+        install(false);
+        draft = null;
+        rebuild = false;
+    }
+
+    /**
+     * Gets how many routes fewer the lookup structure was built from
+     * because of aggregation
+     *
+     * @return The number of routes removed by the last aggregation, 0 if the
+     * routes were not aggregated
+     */
+    public synchronized int getAggregationSavings() {
+        return aggregationSavings;
     }
 
     /**
-     * Parses an IP
+     * Writes the routes to a versioned, checksummed snapshot image, together with a
+     * multibit trie built from them. The file is replaced atomically.
      *
-     * @param ipString The IP address to convert
-     * @return The integer representation for the IP
+     * @param file The file to write the image to
      */
-    private int parseIP(String ipString) {
-        String[] ipParts = ipString.split("\\.");
+    public synchronized void saveSnapshot(File file) throws IOException {
+        loadSnapshotRoutes();
+        Snapshot.write(this, file);
+    }
 
-        int ip = 0;
-        for (int i = 0; i < 4; i++) {
-            ip |= Integer.parseInt(ipParts[i]) << (24 - (8 * i));
+    /**
+     * Replaces all routes with those of a snapshot image written by saveSnapshot.
+     * Lookups are served straight from the memory-mapped image, so loading costs the
+     * page faults of the lookups rather than time per route. The routes themselves
+     * are only read on the first route change, which also builds the backend of this
+     * matcher.
+     *
+     * @param file           The file holding the image
+     * @param verifyChecksum Whether to check the checksum, which reads the whole image
+     * @throws IOException If the file cannot be read or does not hold a valid image
+     */
+    public synchronized void loadSnapshot(File file, boolean verifyChecksum) throws IOException {
+        Snapshot snapshot = Snapshot.map(file, verifyChecksum);
+        for (int i = 0; i <= 32; i++) {
+            routes[i] = new IntIntMap();
         }
+        snapshotRoutes = snapshot.routes;
 
-        return ip;
+        core = snapshot.engine;
+        install(false);
+        draft = null;
+        rebuild = false;
+    }
+
+    /**
+     * Starts or stops recording lookup statistics. Recording costs two striped
+     * counter increments per lookup and makes lookupBatch look up one address at
+     * a time. Changing this puts the recorder in front of the current lookup
+     * structure or takes it away, and keeps the flow cache.
+     *
+     * @param enabled Whether to record the lookups in getLookupStats
+     */
+    public synchronized void setStatsRecording(boolean enabled) {
+        if (recording == enabled) {
+            return;
+        }
+        recording = enabled;
+        if (core != null) {
+            LookupEngine snapshot = recording ? new RecordingEngine(core, lookupStats) : core;
+            if (flowCache == null) {
+                engine = snapshot;
+            } else {
+                // the lookup results stay the same, so the cached ones are kept
+                flowCache.replace(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Gets the lookup statistics, which are only updated while recording
+     *
+     * @return The counters of the recorded lookups
+     */
+    public LookupStats getLookupStats() {
+        return lookupStats;
+    }
+
+    /**
+     * Gets the memory retained by the routing tables and the internal tables of
+     * the lookup structure, not counting object headers
+     *
+     * @return The number of bytes per table name
+     */
+    public synchronized Map<String, Long> getTableBytes() {
+        Map<String, Long> tables = new LinkedHashMap<>();
+        long routeBytes = 0;
+        for (IntIntMap map : routes) {
+            routeBytes += map.bytes();
+        }
+        tables.put("routes", routeBytes);
+
+        LookupEngine snapshot = engine;
+        if (snapshot != null) {
+            snapshot.addTableBytes(tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Gets the counters of the flow cache
+     *
+     * @return The counters, or null if the matcher has no flow cache
+     */
+    public FlowCacheStats getFlowCacheStats() {
+        return flowCacheStats;
+    }
+
+    /**
+     * Applies a group of route changes, which become visible to lookups together
+     * once all of them are done. This costs a single copy of the lookup structure
+     * instead of one for every change.
+     *
+     * @param changes The calls to addRoute, updateRoute and removeRoute to group
+     */
+    public synchronized void updateRoutes(Runnable changes) {
+        batchDepth++;
+        try {
+            changes.run();
+        } finally {
+            batchDepth--;
+            if (batchDepth == 0) {
+                publish();
+            }
+        }
+    }
+
+    /**
+     * Applies a route change to the private copy of the lookup structure, and
+     * publishes it unless the change is part of a group
+     */
+    private void patch(int ip, int prefixLength, int portNumber, int matchLength) {
+        int network = prefixLength == 0 ? 0 : ip & -1 << 32 - prefixLength;
+        if (flowCache != null) {
+            flowCache.routeChanged(network, prefixLength);
+        }
+
+        if (aggregate) {
+            // the aggregated routes do not line up with the original ones, so the
+            // structure cannot be patched with the changed route
+            rebuild = true;
+        } else if (!rebuild) {
+            if (draft == null) {
+                draft = core.copy();
+            }
+            rebuild = !draft.update(network, prefixLength, portNumber, matchLength);
+        }
+
+        if (batchDepth == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the lookup snapshot with one including all pending route changes
+     */
+    private void publish() {
+        if (!rebuild && draft == null) {
+            return;
+        }
+
+        // a rebuilt structure gives the same results as a patched one, so in both
+        // cases the flow cache only forgets the changed prefixes
+        core = rebuild ? build() : draft;
+        install(true);
+        draft = null;
+        rebuild = false;
+    }
+
+    /**
+     * Builds the lookup structure of the backend, without the statistics recorder and flow cache
+     */
+    private LookupEngine build() {
+        if (!aggregate) {
+            aggregationSavings = 0;
+            return backend.build(this);
+        }
+
+        LongestPrefixMatcher aggregated = RouteAggregator.aggregate(this, backend);
+        aggregationSavings = routeCount() - aggregated.routeCount();
+        return backend.build(aggregated);
+    }
+
+    /**
+     * Gets the number of routes in the routing tables
+     */
+    private int routeCount() {
+        int count = 0;
+        for (IntIntMap map : routes) {
+            count += map.size();
+        }
+        return count;
+    }
+
+    /**
+     * Publishes the core structure as the lookup snapshot, behind the statistics
+     * recorder and flow cache if they are enabled. Lookups answered by the cache
+     * are not recorded.
+     *
+     * @param changed Whether the structure only differs from the previous snapshot
+     *                in the route changes reported to the flow cache, rather than
+     *                being built from a new set of routes
+     */
+    private void install(boolean changed) {
+        LookupEngine snapshot = recording ? new RecordingEngine(core, lookupStats) : core;
+        if (flowCache == null) {
+            engine = snapshot;
+            return;
+        }
+
+        if (changed) {
+            flowCache.publish(snapshot);
+        } else {
+            flowCache.reset(snapshot);
+        }
+        engine = flowCache;
+    }
+
+    /**
+     * Adds the routes of a loaded snapshot image to the routing tables, if that
+     * has not happened yet
+     */
+    private void loadSnapshotRoutes() {
+        if (snapshotRoutes == null) {
+            return;
+        }
+
+        for (int i = 0; i < snapshotRoutes.limit(); i += 3) {
+            int prefixLength = snapshotRoutes.get(i + 1);
+            routes[prefixLength].put(prefixOf(snapshotRoutes.get(i), prefixLength), snapshotRoutes.get(i + 2));
+        }
+        snapshotRoutes = null;
+    }
+
+    /**
+     * Passes every route to the given consumer in ascending order of prefix length
+     *
+     * @param consumer The consumer receiving the routes
+     */
+    void forEachRoute(RouteConsumer consumer) {
+        for (int length = 0; length <= 32; length++) {
+            int prefixLength = length;
+            routes[length].forEach((prefix, portNumber) -> {
+                int ip = prefixLength == 0 ? 0 : prefix << 32 - prefixLength;
+                consumer.accept(ip, prefixLength, portNumber);
+            });
+        }
+    }
+
+    /**
+     * Gets the network part of an IP address
+     *
+     * @param ip           The IP address in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     * @return The top prefixLength bits of the IP
+     */
+    static int prefixOf(int ip, int prefixLength) {
+        // shifting an int by 32 is a no-op in java, so /0 needs its own case
+        return prefixLength == 0 ? 0 : ip >>> 32 - prefixLength;
+    }
+
+    /**
+     * Converts an integer representation IP to the human readable form
+     *
+     * @param ip The IP address to convert
+     * @return The String representation for the IP (as xxx.xxx.xxx.xxx)
+     */
+    private String ipToHuman(int ip) {
+        return (ip >> 24 & 0xff) + "." + (ip >> 16 & 0xff) + "." + (ip >> 8 & 0xff) + "." + (ip & 0xff);
     }
 }
@@ -0,0 +1,59 @@
+package lpm;
+
+/**
+ * Longest prefix matcher for IPv6 routes.
+ * <p>
+ * Addresses are given as two longs holding the most and least significant 64 bits,
+ * and prefixes can be up to /128 long. Routes are collected in a binary trie, from
+ * which finalizeRoutes builds a compressed trie (see {@link Poptrie}) for fast lookups.
+ * <p>
+ * Unlike {@link LongestPrefixMatcher}, this matcher does not support route changes
+ * concurrent with lookups: adding a route after finalizeRoutes falls back to slow
+ * lookups until the routes are finalized again.
+ */
+public class LongestPrefixMatcher6 {
+    // all routes added so far
+    private final BinaryTrie routes = new BinaryTrie();
+
+    // lookup structure built by finalizeRoutes, null while routes are being added
+    private Poptrie trie;
+
+    /**
+     * Looks up an IPv6 address in the routing tables
+     *
+     * @param high The most significant 64 bits of the address
+     * @param low  The least significant 64 bits of the address
+     * @return The port number this IP maps to, -1 if there is no match
+     */
+    public int lookup(long high, long low) {
+        if (trie != null) {
+            return trie.lookup(high, low);
+        }
+        return routes.lookup(high, low);
+    }
+
+    /**
+     * Adds a route to the routing tables. A route for a prefix that was added
+     * before replaces it.
+     *
+     * @param high         The most significant 64 bits of the network address
+     * @param low          The least significant 64 bits of the network address
+     * @param prefixLength The number of bits indicating the network part, 0 to 128
+     * @param portNumber   The port number the IP block routes to
+     */
+    public void addRoute(long high, long low, int prefixLength, int portNumber) {
+        if (prefixLength < 0 || prefixLength > 128) {
+            throw new IllegalArgumentException("Prefix length out of range: " + prefixLength);
+        }
+        routes.insert(high, low, prefixLength, portNumber);
+        trie = null;
+    }
+
+    /**
+     * This method is called after all routes have been added, and builds
+     * the structure used for lookups.
+     */
+    public void finalizeRoutes() {
+        trie = new Poptrie(routes, 128);
+    }
+}
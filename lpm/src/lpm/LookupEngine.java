@@ -0,0 +1,74 @@
+package lpm;
+
+import java.util.Map;
+
+/**
+ * Lookup structure built from the routes of a {@link LongestPrefixMatcher}
+ * when its routes are finalized.
+ */
+interface LookupEngine {
+    /**
+     * Looks up an IP address
+     *
+     * @param ip The IP address to be looked up in integer representation
+     * @return The port number this IP maps to, or -1 if there is no match
+     */
+    int lookup(int ip);
+
+    /**
+     * Looks up several IP addresses at once. Implementations interleave the
+     * walks of the addresses so that their cache misses overlap.
+     *
+     * @param ips   The IP addresses to be looked up
+     * @param ports The array receiving the port number of each address
+     * @param count The number of addresses to look up
+     */
+    default void lookupBatch(int[] ips, int[] ports, int count) {
+        for (int i = 0; i < count; i++) {
+            ports[i] = lookup(ips[i]);
+        }
+    }
+
+    /**
+     * Looks up an IP address like lookup, also reporting how the lookup went
+     *
+     * @param ip The IP address to be looked up in integer representation
+     * @return The port number, the number of levels or hash probes it took and the
+     * length of the matched prefix, packed with {@link LookupStats#trace}
+     */
+    long trace(int ip);
+
+    /**
+     * Adds the memory retained by the internal tables of the structure
+     *
+     * @param tables The map receiving the number of bytes per table name
+     */
+    void addTableBytes(Map<String, Long> tables);
+
+    /**
+     * Patches the structure after the route for a prefix was added, changed or removed.
+     * All addresses inside the prefix that do not match a longer route get the given
+     * port, which belongs to a route of matchLength bits.
+     *
+     * @param ip           The network address of the prefix (host bits are zero)
+     * @param prefixLength The length of the prefix that changed
+     * @param portNumber   The port the addresses map to now, -1 if there is no match
+     * @param matchLength  The length of the route the addresses match now,
+     *                     prefixLength after an update and shorter (-1 if there is no
+     *                     match) after a removal
+     * @return Whether the structure was patched; if not, it has to be rebuilt
+     */
+    default boolean update(int ip, int prefixLength, int portNumber, int matchLength) {
+        return false;
+    }
+
+    /**
+     * Copies the structure, so that it can be patched while the original
+     * is still being used for lookups. The copy may share the parts that
+     * the patches do not touch with the original, which therefore must not
+     * be patched itself anymore.
+     *
+     * @return A structure whose patches do not change this one
+     */
+    LookupEngine copy();
+}
@@ -0,0 +1,177 @@
+package lpm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the lookups of a {@link LongestPrefixMatcher} while it
+ * records them.
+ * <p>
+ * Every lookup increments one bucket of the level histogram, with the number of
+ * trie levels or hash probes it took, and, if it matched, one bucket of the
+ * matched prefix length distribution. The counters are striped, so lookups from
+ * many threads do not contend on them. With a flow cache, only the lookups that
+ * miss the cache reach the lookup structure and are counted.
+ */
+public class LookupStats {
+    /**
+     * The largest number of levels or probes with its own bucket
+     */
+    public static final int MAX_LEVELS = 33;
+
+    // matched length reported by structures that do not keep the lengths of their routes
+    static final int UNKNOWN_LENGTH = -2;
+
+    private final LongAdder[] levels = new LongAdder[MAX_LEVELS + 1];
+    private final LongAdder[] matchedLengths = new LongAdder[33];
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unknownLengths = new LongAdder();
+
+    LookupStats() {
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new LongAdder();
+        }
+        for (int i = 0; i < matchedLengths.length; i++) {
+            matchedLengths[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Packs the outcome of a traced lookup into a long
+     *
+     * @param portNumber  The port number the lookup returned
+     * @param levels      The number of levels or probes the lookup took
+     * @param matchLength The length of the matched prefix, -1 if there was no match,
+     *                    or UNKNOWN_LENGTH
+     */
+    static long trace(int portNumber, int levels, int matchLength) {
+        return (long) portNumber << 32 | (levels & 0xffffL) << 16 | matchLength & 0xffffL;
+    }
+
+    /**
+     * Gets the port number of a packed trace
+     */
+    static int portOf(long trace) {
+        return (int) (trace >> 32);
+    }
+
+    /**
+     * Counts a lookup from its packed trace
+     */
+    void record(long trace) {
+        int level = (int) trace >>> 16 & 0xffff;
+        int matchLength = (short) trace;
+        levels[Math.min(level, MAX_LEVELS)].increment();
+
+        if (portOf(trace) == -1) {
+            misses.increment();
+        } else if (matchLength >= 0) {
+            matchedLengths[matchLength].increment();
+        } else {
+            unknownLengths.increment();
+        }
+    }
+
+    /**
+     * Gets the number of recorded lookups
+     */
+    public long lookups() {
+        long lookups = 0;
+        for (LongAdder level : levels) {
+            lookups += level.sum();
+        }
+        return lookups;
+    }
+
+    /**
+     * Gets the number of recorded lookups that did not match any route
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the share of lookups that did not match any route
+     *
+     * @return The miss rate between 0 and 1, or 0 if there were no lookups
+     */
+    public double missRate() {
+        long lookups = lookups();
+        return lookups == 0 ? 0 : (double) misses() / lookups;
+    }
+
+    /**
+     * Gets the number of lookups per number of trie levels or hash probes
+     *
+     * @return The counts indexed by the number of levels; the last bucket also
+     * counts all lookups with more levels
+     */
+    public long[] levelHistogram() {
+        long[] histogram = new long[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            histogram[i] = levels[i].sum();
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the number of matching lookups per length of the matched prefix. Lookups
+     * on structures that do not keep prefix lengths (Poptrie, range tables and
+     * snapshot images) are only counted by unknownLengths.
+     *
+     * @return The counts indexed by prefix length, 0 to 32
+     */
+    public long[] matchedLengths() {
+        long[] histogram = new long[matchedLengths.length];
+        for (int i = 0; i < matchedLengths.length; i++) {
+            histogram[i] = matchedLengths[i].sum();
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the number of matching lookups whose prefix length is not known
+     */
+    public long unknownLengths() {
+        return unknownLengths.sum();
+    }
+
+    /**
+     * Resets all counters to zero
+     */
+    public void reset() {
+        for (LongAdder level : levels) {
+            level.reset();
+        }
+        for (LongAdder length : matchedLengths) {
+            length.reset();
+        }
+        misses.reset();
+        unknownLengths.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("lookups: %d, misses: %d (miss rate %.1f%%)", lookups(), misses(), 100 * missRate()));
+
+        builder.append("\nlevels:");
+        long[] histogram = levelHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                builder.append(' ').append(i).append(i == MAX_LEVELS ? "+" : "").append('=').append(histogram[i]);
+            }
+        }
+
+        builder.append("\nmatched lengths:");
+        long[] lengths = matchedLengths();
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0) {
+                builder.append(" /").append(i).append('=').append(lengths[i]);
+            }
+        }
+        if (unknownLengths() > 0) {
+            builder.append(" unknown=").append(unknownLengths());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,476 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Fixed-stride multibit trie with strides of 16, 8 and 8 bits.
+ * <p>
+ * Routes are stored with controlled prefix expansion: every slot of a level holds
+ * either the port number of the longest prefix covering it (-1 if there is none),
+ * or a reference to a 256-entry block of the next level. A lookup therefore takes
+ * at most three array reads and does not allocate.
+ * <p>
+ * Next to every slot the length of the prefix it was expanded from is kept, so
+ * routes can be added and removed by patching only the slots they cover.
+ * <p>
+ * A copy for patching shares everything with the original and copies only what
+ * the patches change: the first level is split into pages of 256 slots, and the
+ * blocks of the other levels are copied into fresh blocks at the end of their
+ * level. Blocks are appended to arrays shared with the original, which never
+ * references blocks beyond its own count. The blocks replaced by copies stay
+ * behind in these arrays, so once they make up half of the blocks the trie asks
+ * to be rebuilt instead of patched.
+ */
+class MultibitTrie implements LookupEngine {
+    private static final int BLOCK_SIZE = 256;
+
+    // number of replaced blocks that is always tolerated before rebuilding
+    private static final int MIN_GARBAGE_BLOCKS = 1024;
+
+    // first level, as pages of BLOCK_SIZE slots indexed by the top 8 bits of the
+    // address, then by the next 8 bits
+    private final int[][] level1;
+
+    // whether each page of the first level is shared with the trie this one was copied from
+    private final boolean[] sharedPages;
+
+    // second and third levels, stored as consecutive blocks of 256 slots
+    private int[] level2;
+    private int[] level3;
+    private int level2Blocks = 0;
+    private int level3Blocks = 0;
+
+    // blocks below these indexes are shared with the trie this one was copied from
+    private int sharedLevel2Blocks = 0;
+    private int sharedLevel3Blocks = 0;
+
+    // blocks of both levels that were replaced by copies and are no longer referenced
+    private int garbageBlocks = 0;
+
+    // prefix length + 1 of the route each slot was expanded from, 0 if there is none
+    private final byte[][] depth1;
+    private byte[] depth2;
+    private byte[] depth3;
+
+    /**
+     * Builds the trie from the routes of the given matcher. Every /8 of the address
+     * space is built in parallel into its own part of the first level, with its own
+     * blocks, which are then joined into the second and third levels.
+     *
+     * @param routes The matcher providing the routes
+     */
+    MultibitTrie(LongestPrefixMatcher routes) {
+        level1 = new int[BLOCK_SIZE][BLOCK_SIZE];
+        depth1 = new byte[BLOCK_SIZE][BLOCK_SIZE];
+        sharedPages = new boolean[BLOCK_SIZE];
+
+        RoutePartitions partitions = new RoutePartitions(routes);
+        MultibitTrie[] parts = new MultibitTrie[RoutePartitions.COUNT];
+        RoutePartitions.forEachPartition(p -> parts[p] = new MultibitTrie(this, partitions, p));
+
+        // blocks of each part are placed after those of the parts before it
+        int[] offsets2 = new int[parts.length + 1];
+        int[] offsets3 = new int[parts.length + 1];
+        for (int p = 0; p < parts.length; p++) {
+            offsets2[p + 1] = offsets2[p] + parts[p].level2Blocks;
+            offsets3[p + 1] = offsets3[p] + parts[p].level3Blocks;
+        }
+        level2Blocks = offsets2[parts.length];
+        level3Blocks = offsets3[parts.length];
+        level2 = new int[level2Blocks * BLOCK_SIZE];
+        level3 = new int[level3Blocks * BLOCK_SIZE];
+        depth2 = new byte[level2Blocks * BLOCK_SIZE];
+        depth3 = new byte[level3Blocks * BLOCK_SIZE];
+
+        RoutePartitions.forEachPartition(p -> {
+            // every partition covers one page of the first level
+            MultibitTrie part = parts[p];
+            rebase(level1[p], 0, BLOCK_SIZE, offsets2[p]);
+
+            int slots2 = part.level2Blocks * BLOCK_SIZE;
+            System.arraycopy(part.level2, 0, level2, offsets2[p] * BLOCK_SIZE, slots2);
+            System.arraycopy(part.depth2, 0, depth2, offsets2[p] * BLOCK_SIZE, slots2);
+            rebase(level2, offsets2[p] * BLOCK_SIZE, slots2, offsets3[p]);
+
+            int slots3 = part.level3Blocks * BLOCK_SIZE;
+            System.arraycopy(part.level3, 0, level3, offsets3[p] * BLOCK_SIZE, slots3);
+            System.arraycopy(part.depth3, 0, depth3, offsets3[p] * BLOCK_SIZE, slots3);
+        });
+    }
+
+    /**
+     * Builds one partition of a trie: its slots of the shared first level, and
+     * blocks of its own numbered from 0
+     *
+     * @param trie       The trie whose first level is filled in
+     * @param partitions The routes split by partition
+     * @param partition  The index of the partition to build
+     */
+    private MultibitTrie(MultibitTrie trie, RoutePartitions partitions, int partition) {
+        level1 = trie.level1;
+        depth1 = trie.depth1;
+        sharedPages = trie.sharedPages;
+        level2 = new int[0];
+        level3 = new int[0];
+        depth2 = new byte[0];
+        depth3 = new byte[0];
+
+        int slots = 1 << 16 - RoutePartitions.BITS;
+        int from = partition * slots;
+        Arrays.fill(level1[partition], -1);
+
+        // shorter routes are clipped to the partition
+        partitions.forEachShortRoute(partition, (ip, prefixLength, portNumber) ->
+                updateLevel1(from, from + slots, prefixLength, portNumber, (byte) (prefixLength + 1)));
+        partitions.forEachRoute(partition, (ip, prefixLength, portNumber) ->
+                update(ip, prefixLength, portNumber, prefixLength));
+    }
+
+    /**
+     * Creates a copy of another trie that shares all pages and blocks with it
+     */
+    private MultibitTrie(MultibitTrie other) {
+        level1 = other.level1.clone();
+        depth1 = other.depth1.clone();
+        sharedPages = new boolean[BLOCK_SIZE];
+        Arrays.fill(sharedPages, true);
+        level2 = other.level2;
+        level3 = other.level3;
+        depth2 = other.depth2;
+        depth3 = other.depth3;
+        level2Blocks = other.level2Blocks;
+        level3Blocks = other.level3Blocks;
+        sharedLevel2Blocks = level2Blocks;
+        sharedLevel3Blocks = level3Blocks;
+        garbageBlocks = other.garbageBlocks;
+    }
+
+    @Override
+    public LookupEngine copy() {
+        return new MultibitTrie(this);
+    }
+
+    /**
+     * Gets the slots of the three levels, for writing them to a snapshot image
+     *
+     * @return The first level and the allocated blocks of the second and third level
+     */
+    int[][] levels() {
+        int[] flatLevel1 = new int[BLOCK_SIZE * BLOCK_SIZE];
+        for (int page = 0; page < BLOCK_SIZE; page++) {
+            System.arraycopy(level1[page], 0, flatLevel1, page * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        return new int[][]{
+                flatLevel1,
+                Arrays.copyOf(level2, level2Blocks * BLOCK_SIZE),
+                Arrays.copyOf(level3, level3Blocks * BLOCK_SIZE)
+        };
+    }
+
+    @Override
+    public int lookup(int ip) {
+        int entry = level1[ip >>> 24][ip >>> 16 & 0xff];
+        if (entry >= -1) {
+            return entry;
+        }
+
+        entry = level2[blockOffset(entry) | (ip >>> 8 & 0xff)];
+        if (entry >= -1) {
+            return entry;
+        }
+
+        return level3[blockOffset(entry) | (ip & 0xff)];
+    }
+
+    @Override
+    public long trace(int ip) {
+        int page = ip >>> 24;
+        int index = ip >>> 16 & 0xff;
+        if (level1[page][index] >= -1) {
+            return LookupStats.trace(level1[page][index], 1, depth1[page][index] - 1);
+        }
+
+        index = blockOffset(level1[page][index]) | (ip >>> 8 & 0xff);
+        if (level2[index] >= -1) {
+            return LookupStats.trace(level2[index], 2, depth2[index] - 1);
+        }
+
+        index = blockOffset(level2[index]) | (ip & 0xff);
+        return LookupStats.trace(level3[index], 3, depth3[index] - 1);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        tables.put("level 1", 5L * BLOCK_SIZE * BLOCK_SIZE);
+        tables.put("level 2", 5L * level2.length);
+        tables.put("level 3", 5L * level3.length);
+    }
+
+    @Override
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        // every level is read for the whole batch before moving on to the next one,
+        // so the reads of a level do not depend on each other
+        for (int i = 0; i < count; i++) {
+            ports[i] = level1[ips[i] >>> 24][ips[i] >>> 16 & 0xff];
+        }
+        for (int i = 0; i < count; i++) {
+            if (ports[i] < -1) {
+                ports[i] = level2[blockOffset(ports[i]) | (ips[i] >>> 8 & 0xff)];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (ports[i] < -1) {
+                ports[i] = level3[blockOffset(ports[i]) | (ips[i] & 0xff)];
+            }
+        }
+    }
+
+    @Override
+    public boolean update(int ip, int prefixLength, int portNumber, int matchLength) {
+        if (garbageBlocks > Math.max(MIN_GARBAGE_BLOCKS, (level2Blocks + level3Blocks) / 2)) {
+            // a rebuild only keeps the blocks that are still referenced
+            return false;
+        }
+
+        byte depth = (byte) (matchLength + 1);
+        if (prefixLength <= 16) {
+            int from = ip >>> 16;
+            updateLevel1(from, from + (1 << 16 - prefixLength), prefixLength, portNumber, depth);
+            return true;
+        }
+
+        // get (or create) the second level block below the top 16 bits
+        int index1 = ip >>> 16;
+        int entry1 = level1[index1 >>> 8][index1 & 0xff];
+        byte depth1 = this.depth1[index1 >>> 8][index1 & 0xff];
+        int block2 = entry1 >= -1 ? newLevel2Block(entry1, depth1) : blockIndex(entry1);
+
+        if (prefixLength <= 24) {
+            int from = ip >>> 8 & 0xff;
+            block2 = updateLevel2(block2, from, from + (1 << 24 - prefixLength), prefixLength, portNumber, depth);
+        } else {
+            // get (or create) the third level block below the top 24 bits
+            int index2 = ip >>> 8 & 0xff;
+            int entry2 = level2[block2 << 8 | index2];
+            int block3;
+            if (entry2 >= -1) {
+                block2 = writableLevel2Block(block2);
+                block3 = newLevel3Block(entry2, depth2[block2 << 8 | index2]);
+                level2[block2 << 8 | index2] = reference(block3);
+            } else {
+                block3 = blockIndex(entry2);
+            }
+
+            int from = ip & 0xff;
+            int updated = updateLevel3(block3, from, from + (1 << 32 - prefixLength), prefixLength, portNumber, depth);
+            if (updated != block3) {
+                block2 = writableLevel2Block(block2);
+                level2[block2 << 8 | index2] = reference(updated);
+            }
+        }
+
+        if (entry1 != reference(block2)) {
+            setLevel1(index1, reference(block2), depth1);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the port of the first level slots in [from, to) that do not match
+     * a route longer than prefixLength, descending into their blocks
+     */
+    private void updateLevel1(int from, int to, int prefixLength, int portNumber, byte depth) {
+        for (int i = from; i < to; i++) {
+            int entry = level1[i >>> 8][i & 0xff];
+            byte slotDepth = depth1[i >>> 8][i & 0xff];
+            if (entry < -1) {
+                int block = blockIndex(entry);
+                int updated = updateLevel2(block, 0, BLOCK_SIZE, prefixLength, portNumber, depth);
+                if (updated != block) {
+                    setLevel1(i, reference(updated), slotDepth);
+                }
+            } else if (slotDepth <= prefixLength + 1 && (entry != portNumber || slotDepth != depth)) {
+                setLevel1(i, portNumber, depth);
+            }
+        }
+    }
+
+    /**
+     * Sets the port of the slots in [from, to) of a second level block that do not
+     * match a route longer than prefixLength, descending into their blocks
+     *
+     * @return The index of the block, which differs from the given one if it had
+     * to be copied
+     */
+    private int updateLevel2(int block, int from, int to, int prefixLength, int portNumber, byte depth) {
+        for (int i = from; i < to; i++) {
+            int entry = level2[block << 8 | i];
+            byte slotDepth = depth2[block << 8 | i];
+            if (entry < -1) {
+                int child = blockIndex(entry);
+                int updated = updateLevel3(child, 0, BLOCK_SIZE, prefixLength, portNumber, depth);
+                if (updated != child) {
+                    block = writableLevel2Block(block);
+                    level2[block << 8 | i] = reference(updated);
+                }
+            } else if (slotDepth <= prefixLength + 1 && (entry != portNumber || slotDepth != depth)) {
+                block = writableLevel2Block(block);
+                level2[block << 8 | i] = portNumber;
+                depth2[block << 8 | i] = depth;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Sets the port of the slots in [from, to) of a third level block that do not
+     * match a route longer than prefixLength
+     *
+     * @return The index of the block, which differs from the given one if it had
+     * to be copied
+     */
+    private int updateLevel3(int block, int from, int to, int prefixLength, int portNumber, byte depth) {
+        for (int i = from; i < to; i++) {
+            byte slotDepth = depth3[block << 8 | i];
+            if (slotDepth <= prefixLength + 1 && (level3[block << 8 | i] != portNumber || slotDepth != depth)) {
+                block = writableLevel3Block(block);
+                level3[block << 8 | i] = portNumber;
+                depth3[block << 8 | i] = depth;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Sets a slot of the first level, copying its page first if it is shared
+     */
+    private void setLevel1(int index, int entry, byte depth) {
+        int page = index >>> 8;
+        if (sharedPages[page]) {
+            level1[page] = level1[page].clone();
+            depth1[page] = depth1[page].clone();
+            sharedPages[page] = false;
+        }
+        level1[page][index & 0xff] = entry;
+        depth1[page][index & 0xff] = depth;
+    }
+
+    /**
+     * Gets a second level block that can be changed: the block itself, or a copy
+     * if it is shared
+     *
+     * @return The index of the block or its copy
+     */
+    private int writableLevel2Block(int block) {
+        if (block >= sharedLevel2Blocks) {
+            return block;
+        }
+        int copy = allocateLevel2Block();
+        garbageBlocks++;
+        System.arraycopy(level2, block << 8, level2, copy << 8, BLOCK_SIZE);
+        System.arraycopy(depth2, block << 8, depth2, copy << 8, BLOCK_SIZE);
+        return copy;
+    }
+
+    /**
+     * Gets a third level block that can be changed: the block itself, or a copy
+     * if it is shared
+     *
+     * @return The index of the block or its copy
+     */
+    private int writableLevel3Block(int block) {
+        if (block >= sharedLevel3Blocks) {
+            return block;
+        }
+        int copy = allocateLevel3Block();
+        garbageBlocks++;
+        System.arraycopy(level3, block << 8, level3, copy << 8, BLOCK_SIZE);
+        System.arraycopy(depth3, block << 8, depth3, copy << 8, BLOCK_SIZE);
+        return copy;
+    }
+
+    /**
+     * Allocates a second level block with all slots set to the given port
+     *
+     * @return The index of the new block
+     */
+    private int newLevel2Block(int portNumber, byte depth) {
+        int block = allocateLevel2Block();
+        Arrays.fill(level2, block << 8, (block + 1) << 8, portNumber);
+        Arrays.fill(depth2, block << 8, (block + 1) << 8, depth);
+        return block;
+    }
+
+    /**
+     * Allocates a third level block with all slots set to the given port
+     *
+     * @return The index of the new block
+     */
+    private int newLevel3Block(int portNumber, byte depth) {
+        int block = allocateLevel3Block();
+        Arrays.fill(level3, block << 8, (block + 1) << 8, portNumber);
+        Arrays.fill(depth3, block << 8, (block + 1) << 8, depth);
+        return block;
+    }
+
+    /**
+     * Appends an uninitialized block to the second level, growing its arrays if needed
+     *
+     * @return The index of the new block
+     */
+    private int allocateLevel2Block() {
+        if ((level2Blocks + 1) * BLOCK_SIZE > level2.length) {
+            int length = Math.max(level2.length * 2, BLOCK_SIZE * 64);
+            level2 = Arrays.copyOf(level2, length);
+            depth2 = Arrays.copyOf(depth2, length);
+        }
+        return level2Blocks++;
+    }
+
+    /**
+     * Appends an uninitialized block to the third level, growing its arrays if needed
+     *
+     * @return The index of the new block
+     */
+    private int allocateLevel3Block() {
+        if ((level3Blocks + 1) * BLOCK_SIZE > level3.length) {
+            int length = Math.max(level3.length * 2, BLOCK_SIZE * 64);
+            level3 = Arrays.copyOf(level3, length);
+            depth3 = Arrays.copyOf(depth3, length);
+        }
+        return level3Blocks++;
+    }
+
+    /**
+     * Moves the block references in a range of slots by a number of blocks
+     */
+    private static void rebase(int[] slots, int from, int count, int blocks) {
+        for (int i = from; i < from + count; i++) {
+            if (slots[i] < -1) {
+                slots[i] -= blocks;
+            }
+        }
+    }
+
+    /**
+     * Encodes a block index as a slot value; ports are never below -1
+     */
+    private static int reference(int block) {
+        return -2 - block;
+    }
+
+    /**
+     * Decodes a slot value into the index of the block it references
+     */
+    private static int blockIndex(int entry) {
+        return -2 - entry;
+    }
+
+    /**
+     * Decodes a slot value into the offset of the block it references
+     */
+    private static int blockOffset(int entry) {
+        return blockIndex(entry) << 8;
+    }
+}
@@ -0,0 +1,311 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compressed multibit trie after Poptrie (Asai and Ohara, SIGCOMM 2015).
+ * <p>
+ * The top 16 bits of an address index a direct table; its slots hold either a port
+ * number (-1 if there is no match) or a reference to a node. Each node covers the
+ * next 6 bits of the address with two 64-bit bitmaps: <i>vector</i> marks the slots
+ * that have a child node and <i>leafvec</i> marks the slots where a new run of equal
+ * ports starts. Children and leaves of a node are stored contiguously, so the
+ * position of the one to follow is found with a popcount over the bitmap.
+ * <p>
+ * A node is packed into three longs (vector, leafvec and the base indexes of its
+ * leaves and children), which keeps a full table in a few MB and costs at most
+ * one direct read and three node reads per lookup.
+ * <p>
+ * The same structure serves 128-bit IPv6 addresses. IPv6 tables are sparse: routes
+ * cluster in a few /16s and mostly end between /29 and /48, so fixed 8-bit blocks
+ * would be nearly empty while compressed nodes only grow with the routes below them.
+ * A /48 takes one direct read and six node reads.
+ */
+class Poptrie implements LookupEngine {
+    private static final int DIRECT_BITS = 16;
+    private static final int STRIDE = 6;
+
+    // number of address bits, 32 for IPv4 and 128 for IPv6
+    private final int width;
+
+    // direct table, indexed by the top 16 bits of the address
+    private final int[] direct = new int[1 << DIRECT_BITS];
+
+    // nodes as (vector, leafvec, leaf base << 32 | child base) triples
+    private long[] nodes = new long[3 * 1024];
+    private int nodeCount = 0;
+
+    // compressed leaves of all nodes
+    private int[] leaves = new int[4096];
+    private int leafCount = 0;
+
+    /**
+     * Builds the trie from the routes of the given matcher.
+     *
+     * @param routes The matcher providing the routes
+     */
+    Poptrie(LongestPrefixMatcher routes) {
+        this(new BinaryTrie(routes), 32);
+    }
+
+    /**
+     * Builds the trie from a binary trie of routes
+     *
+     * @param trie  The binary trie holding the routes
+     * @param width The number of address bits, 32 or 128
+     */
+    Poptrie(BinaryTrie trie, int width) {
+        this.width = width;
+
+        for (int index = 0; index < direct.length; index++) {
+            // walk down the top 16 bits, remembering the longest match on the way
+            int node = 0;
+            int port = trie.port(0);
+            for (int depth = DIRECT_BITS - 1; depth >= 0; depth--) {
+                node = trie.child(node, index >>> depth & 1);
+                if (node == BinaryTrie.NONE) {
+                    break;
+                }
+                if (trie.port(node) != -1) {
+                    port = trie.port(node);
+                }
+            }
+
+            if (node == BinaryTrie.NONE || trie.isLeaf(node)) {
+                direct[index] = port;
+            } else {
+                int root = nodeCount++;
+                ensureNodeCapacity();
+                build(trie, node, DIRECT_BITS, port, root);
+                direct[index] = -2 - root;
+            }
+        }
+
+        nodes = Arrays.copyOf(nodes, 3 * nodeCount);
+        leaves = Arrays.copyOf(leaves, leafCount);
+    }
+
+    @Override
+    public int lookup(int ip) {
+        int entry = direct[ip >>> 32 - DIRECT_BITS];
+        if (entry >= -1) {
+            return entry;
+        }
+
+        int node = 3 * (-2 - entry);
+        int shift = 32 - DIRECT_BITS - STRIDE;
+        while (true) {
+            // the last level has fewer than 6 bits left, which are padded with zeros
+            int index = (shift >= 0 ? ip >>> shift : ip << -shift) & 63;
+            long bit = 1L << index;
+            long vector = nodes[node];
+
+            if ((vector & bit) == 0) {
+                int leafBase = (int) (nodes[node + 2] >>> 32);
+                return leaves[leafBase + Long.bitCount(nodes[node + 1] & (bit << 1) - 1) - 1];
+            }
+
+            int childBase = (int) nodes[node + 2];
+            node = 3 * (childBase + Long.bitCount(vector & bit - 1));
+            shift -= STRIDE;
+        }
+    }
+
+    @Override
+    public long trace(int ip) {
+        // leaves only keep ports, so the matched prefix length is not known
+        int entry = direct[ip >>> 32 - DIRECT_BITS];
+        if (entry >= -1) {
+            return LookupStats.trace(entry, 1, entry == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+        }
+
+        int node = 3 * (-2 - entry);
+        int shift = 32 - DIRECT_BITS - STRIDE;
+        for (int levels = 2; ; levels++) {
+            int index = (shift >= 0 ? ip >>> shift : ip << -shift) & 63;
+            long bit = 1L << index;
+            long vector = nodes[node];
+
+            if ((vector & bit) == 0) {
+                int leafBase = (int) (nodes[node + 2] >>> 32);
+                int port = leaves[leafBase + Long.bitCount(nodes[node + 1] & (bit << 1) - 1) - 1];
+                return LookupStats.trace(port, levels, port == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+            }
+
+            int childBase = (int) nodes[node + 2];
+            node = 3 * (childBase + Long.bitCount(vector & bit - 1));
+            shift -= STRIDE;
+        }
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        tables.put("direct", 4L * direct.length);
+        tables.put("nodes", 8L * nodes.length);
+        tables.put("leaves", 4L * leaves.length);
+    }
+
+    /**
+     * Looks up a 128-bit address in a trie built with a width of 128
+     *
+     * @param high The most significant 64 bits of the address
+     * @param low  The least significant 64 bits of the address
+     * @return The port number this address maps to
+     */
+    int lookup(long high, long low) {
+        int entry = direct[(int) (high >>> 64 - DIRECT_BITS)];
+        if (entry >= -1) {
+            return entry;
+        }
+
+        int node = 3 * (-2 - entry);
+        int offset = DIRECT_BITS;
+        while (true) {
+            int index = chunk(high, low, offset);
+            long bit = 1L << index;
+            long vector = nodes[node];
+
+            if ((vector & bit) == 0) {
+                int leafBase = (int) (nodes[node + 2] >>> 32);
+                return leaves[leafBase + Long.bitCount(nodes[node + 1] & (bit << 1) - 1) - 1];
+            }
+
+            int childBase = (int) nodes[node + 2];
+            node = 3 * (childBase + Long.bitCount(vector & bit - 1));
+            offset += STRIDE;
+        }
+    }
+
+    @Override
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        // the walks advance one level at a time for the whole batch; addresses still
+        // pending hold the reference of their next node in the output array
+        for (int i = 0; i < count; i++) {
+            ports[i] = direct[ips[i] >>> 32 - DIRECT_BITS];
+        }
+
+        boolean pending = true;
+        for (int shift = 32 - DIRECT_BITS - STRIDE; pending; shift -= STRIDE) {
+            pending = false;
+            for (int i = 0; i < count; i++) {
+                if (ports[i] >= -1) {
+                    continue;
+                }
+
+                int ip = ips[i];
+                int node = 3 * (-2 - ports[i]);
+                int index = (shift >= 0 ? ip >>> shift : ip << -shift) & 63;
+                long bit = 1L << index;
+                long vector = nodes[node];
+
+                if ((vector & bit) == 0) {
+                    int leafBase = (int) (nodes[node + 2] >>> 32);
+                    ports[i] = leaves[leafBase + Long.bitCount(nodes[node + 1] & (bit << 1) - 1) - 1];
+                } else {
+                    ports[i] = -2 - ((int) nodes[node + 2] + Long.bitCount(vector & bit - 1));
+                    pending = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public LookupEngine copy() {
+        // the trie is never patched, so it can be shared
+        return this;
+    }
+
+    /**
+     * Fills in a node that was already allocated, followed by its subtree
+     *
+     * @param trie      The binary trie holding the routes
+     * @param trieNode  The binary trie node at the root of this node
+     * @param depth     The number of address bits above this node
+     * @param inherited The port of the longest match above this node
+     * @param index     The index of the node to fill in
+     */
+    private void build(BinaryTrie trie, int trieNode, int depth, int inherited, int index) {
+        int bits = Math.min(STRIDE, width - depth);
+
+        // resolve every slot of the node to either a child or a port
+        int[] childNodes = new int[64];
+        int[] ports = new int[64];
+        long vector = 0;
+        for (int slot = 0; slot < 64; slot++) {
+            int path = slot >>> STRIDE - bits;
+            int node = trieNode;
+            int port = inherited;
+            for (int i = bits - 1; i >= 0; i--) {
+                node = trie.child(node, path >>> i & 1);
+                if (node == BinaryTrie.NONE) {
+                    break;
+                }
+                if (trie.port(node) != -1) {
+                    port = trie.port(node);
+                }
+            }
+
+            ports[slot] = port;
+            if (node != BinaryTrie.NONE && !trie.isLeaf(node)) {
+                childNodes[slot] = node;
+                vector |= 1L << slot;
+            }
+        }
+
+        // store the leaves, only where the port differs from the previous leaf
+        long leafvec = 0;
+        int leafBase = leafCount;
+        for (int slot = 0; slot < 64; slot++) {
+            if ((vector & 1L << slot) == 0 && (leafCount == leafBase || leaves[leafCount - 1] != ports[slot])) {
+                if (leafCount == leaves.length) {
+                    leaves = Arrays.copyOf(leaves, leafCount * 2);
+                }
+                leaves[leafCount++] = ports[slot];
+                leafvec |= 1L << slot;
+            }
+        }
+
+        // allocate the children contiguously before building their subtrees
+        int childBase = nodeCount;
+        nodeCount += Long.bitCount(vector);
+        ensureNodeCapacity();
+
+        nodes[3 * index] = vector;
+        nodes[3 * index + 1] = leafvec;
+        nodes[3 * index + 2] = (long) leafBase << 32 | childBase;
+
+        int child = childBase;
+        for (int slot = 0; slot < 64; slot++) {
+            if ((vector & 1L << slot) != 0) {
+                build(trie, childNodes[slot], depth + bits, ports[slot], child++);
+            }
+        }
+    }
+
+    /**
+     * Gets the 6 bits of a 128-bit address that start at the given offset, counting
+     * from the most significant bit. Bits past the end of the address are zero.
+     */
+    private static int chunk(long high, long low, int offset) {
+        if (offset <= 64 - STRIDE) {
+            return (int) (high >>> 64 - STRIDE - offset) & 63;
+        }
+        if (offset < 64) {
+            // the chunk straddles both halves
+            return (int) (high << offset - (64 - STRIDE) | low >>> 128 - STRIDE - offset) & 63;
+        }
+
+        int shift = 128 - STRIDE - offset;
+        return (int) (shift >= 0 ? low >>> shift : low << -shift) & 63;
+    }
+
+    /**
+     * Grows the node array so that it can hold all allocated nodes
+     */
+    private void ensureNodeCapacity() {
+        if (3 * nodeCount > nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, 3 * nodeCount));
+        }
+    }
+}
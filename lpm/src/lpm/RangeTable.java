@@ -0,0 +1,243 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Routes flattened into sorted, non-overlapping address ranges, searched like
+ * DXR (Zec et al., "DXR: towards a billion routing lookups per second in software",
+ * SIGCOMM CCR 2012).
+ * <p>
+ * Every address belongs to exactly one range, and neighbouring ranges always map to
+ * different ports, so the table has at most about twice as many ranges as routes.
+ * A direct table indexed by the top 16 bits either holds the port of a chunk that is
+ * covered by a single range, or the position and number of the ranges inside it. The
+ * ranges of a chunk are stored as the low 16 bits of their starts, and a lookup finds
+ * the last one at or before the address with a binary search that computes each step
+ * from the sign of a difference instead of branching on a comparison. A search over
+ * n ranges always takes log2(n) steps over a few cache lines of a compact array.
+ */
+class RangeTable implements LookupEngine {
+    private static final int DIRECT_BITS = 16;
+
+    // search lanes of lookupBatch, reused by every batch of a thread
+    private static final ThreadLocal<Lanes> LANES = ThreadLocal.withInitial(Lanes::new);
+
+    // per chunk of 2^16 addresses: (port << 32) if a single range covers it,
+    // otherwise (index of its first range << 32 | number of ranges)
+    private final long[] direct = new long[1 << DIRECT_BITS];
+
+    // low 16 bits of the start of every range in a chunk with more than one range,
+    // grouped by chunk; the first range of a chunk always starts at 0
+    private final char[] starts;
+
+    // port of each range in starts
+    private final int[] ports;
+
+    /**
+     * Builds the table from the routes of the given matcher.
+     *
+     * @param routes The matcher providing the routes
+     */
+    RangeTable(LongestPrefixMatcher routes) {
+        RangeList ranges = new RangeList();
+        addRanges(new BinaryTrie(routes), 0, 0, 0, -1, ranges);
+
+        // ranges crossing a chunk boundary are split, so every chunk starts with a range
+        char[] chunkStarts = new char[ranges.size + direct.length];
+        int[] chunkPorts = new int[ranges.size + direct.length];
+        int size = 0;
+        int next = 0;
+        for (int chunk = 0; chunk < direct.length; chunk++) {
+            long chunkStart = (long) chunk << 32 - DIRECT_BITS;
+            long chunkEnd = chunkStart + (1L << 32 - DIRECT_BITS);
+
+            // the range covering the start of the chunk
+            while (next < ranges.size && ranges.starts[next] <= chunkStart) {
+                next++;
+            }
+            int first = size;
+            chunkStarts[size] = 0;
+            chunkPorts[size++] = ranges.ports[next - 1];
+
+            for (; next < ranges.size && ranges.starts[next] < chunkEnd; next++) {
+                chunkStarts[size] = (char) ranges.starts[next];
+                chunkPorts[size++] = ranges.ports[next];
+            }
+
+            int count = size - first;
+            if (count == 1) {
+                direct[chunk] = (long) chunkPorts[first] << 32;
+                size = first;
+            } else {
+                direct[chunk] = (long) first << 32 | count;
+            }
+        }
+
+        starts = Arrays.copyOf(chunkStarts, size);
+        ports = Arrays.copyOf(chunkPorts, size);
+    }
+
+    @Override
+    public int lookup(int ip) {
+        long entry = direct[ip >>> 32 - DIRECT_BITS];
+        int count = (int) entry;
+        if (count == 0) {
+            return (int) (entry >> 32);
+        }
+        return ports[search((int) (entry >>> 32), count, (char) ip)];
+    }
+
+    @Override
+    public void lookupBatch(int[] ips, int[] ports, int count) {
+        Lanes lanes = LANES.get();
+        for (int from = 0; from < count; from += Lanes.SIZE) {
+            lookupLanes(ips, ports, from, Math.min(count, from + Lanes.SIZE), lanes);
+        }
+    }
+
+    /**
+     * Looks up the addresses in [from, to), at most Lanes.SIZE of them, side by side
+     */
+    private void lookupLanes(int[] ips, int[] ports, int from, int to, Lanes lanes) {
+        // every address is a lane with its own search position and remaining range
+        // count, like the lanes of a vector register. All lanes take one search step
+        // per pass, so the reads of a pass do not depend on each other; finished
+        // and unused lanes keep stepping in place with a remaining count of 1
+        int[] indexes = lanes.indexes;
+        int[] remaining = lanes.remaining;
+        char[] lows = lanes.lows;
+        int lanesUsed = to - from;
+        int steps = 1;
+        for (int lane = 0; lane < lanesUsed; lane++) {
+            long entry = direct[ips[from + lane] >>> 32 - DIRECT_BITS];
+            int ranges = (int) entry;
+            indexes[lane] = ranges == 0 ? 0 : (int) (entry >>> 32);
+            remaining[lane] = Math.max(ranges, 1);
+            lows[lane] = (char) ips[from + lane];
+            steps = Math.max(steps, ranges);
+        }
+        for (int lane = lanesUsed; lane < Lanes.SIZE; lane++) {
+            indexes[lane] = 0;
+            remaining[lane] = 1;
+        }
+
+        for (; steps > 1; steps -= steps >>> 1) {
+            for (int lane = 0; lane < Lanes.SIZE; lane++) {
+                int half = remaining[lane] >>> 1;
+                indexes[lane] += half & starts[indexes[lane] + half] - lows[lane] - 1 >> 31;
+                remaining[lane] -= half;
+            }
+        }
+
+        for (int lane = 0; lane < lanesUsed; lane++) {
+            long entry = direct[ips[from + lane] >>> 32 - DIRECT_BITS];
+            ports[from + lane] = (int) entry == 0 ? (int) (entry >> 32) : this.ports[indexes[lane]];
+        }
+    }
+
+    @Override
+    public long trace(int ip) {
+        // merged ranges do not keep the lengths of their routes
+        long entry = direct[ip >>> 32 - DIRECT_BITS];
+        int count = (int) entry;
+        int port = count == 0 ? (int) (entry >> 32) : ports[search((int) (entry >>> 32), count, (char) ip)];
+        int levels = count == 0 ? 1 : 1 + 32 - Integer.numberOfLeadingZeros(count - 1);
+        return LookupStats.trace(port, levels, port == -1 ? -1 : LookupStats.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        tables.put("range direct", 8L * direct.length);
+        tables.put("range starts", 2L * starts.length);
+        tables.put("range ports", 4L * ports.length);
+    }
+
+    @Override
+    public LookupEngine copy() {
+        // the table is never patched, so it can be shared
+        return this;
+    }
+
+    /**
+     * Finds the last range of a chunk starting at or before an address
+     *
+     * @param first The index of the first range of the chunk
+     * @param count The number of ranges in the chunk
+     * @param low   The low 16 bits of the address
+     * @return The index of the range
+     */
+    private int search(int first, int count, char low) {
+        int index = first;
+        while (count > 1) {
+            int half = count >>> 1;
+            // adds half if that start is at or before the address, from the sign of
+            // the difference, so the compiler cannot turn it into a branch
+            index += half & starts[index + half] - low - 1 >> 31;
+            count -= half;
+        }
+        return index;
+    }
+
+    /**
+     * Adds the ranges of a subtree of the binary trie in address order
+     *
+     * @param trie      The binary trie holding the routes
+     * @param node      The node at the root of the subtree
+     * @param depth     The number of address bits above the node
+     * @param start     The first address of the subtree
+     * @param inherited The port of the longest match above the node
+     * @param ranges    The list receiving the ranges
+     */
+    private static void addRanges(BinaryTrie trie, int node, int depth, long start, int inherited, RangeList ranges) {
+        int port = trie.port(node) != -1 ? trie.port(node) : inherited;
+        if (trie.isLeaf(node)) {
+            ranges.add(start, port);
+            return;
+        }
+
+        for (int bit = 0; bit < 2; bit++) {
+            long childStart = start + ((long) bit << 31 - depth);
+            int child = trie.child(node, bit);
+            if (child == BinaryTrie.NONE) {
+                ranges.add(childStart, port);
+            } else {
+                addRanges(trie, child, depth + 1, childStart, port, ranges);
+            }
+        }
+    }
+
+    /**
+     * Growable list of ranges, merging each range into the previous one if both map to the same port
+     */
+    private static class RangeList {
+        long[] starts = new long[1024];
+        int[] ports = new int[1024];
+        int size = 0;
+
+        void add(long start, int port) {
+            if (size > 0 && ports[size - 1] == port) {
+                return;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ports = Arrays.copyOf(ports, size * 2);
+            }
+            starts[size] = start;
+            ports[size] = port;
+            size++;
+        }
+    }
+
+    /**
+     * Search positions, remaining range counts and low address bits of the
+     * addresses looked up side by side
+     */
+    private static class Lanes {
+        static final int SIZE = 64;
+
+        final int[] indexes = new int[SIZE];
+        final int[] remaining = new int[SIZE];
+        final char[] lows = new char[SIZE];
+    }
+}
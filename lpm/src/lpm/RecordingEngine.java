@@ -0,0 +1,48 @@
+package lpm;
+
+import java.util.Map;
+
+/**
+ * Lookup structure that counts how the lookups of another structure went.
+ * <p>
+ * Lookups are traced one at a time, so batches lose their overlap while recording.
+ * Without recording, the matcher does not use this class at all. The matcher
+ * patches and copies the structure behind the recorder, never the recorder itself.
+ */
+class RecordingEngine implements LookupEngine {
+    private final LookupEngine engine;
+    private final LookupStats stats;
+
+    /**
+     * Wraps a lookup structure
+     *
+     * @param engine The structure doing the lookups
+     * @param stats  The counters to record the lookups in
+     */
+    RecordingEngine(LookupEngine engine, LookupStats stats) {
+        this.engine = engine;
+        this.stats = stats;
+    }
+
+    @Override
+    public int lookup(int ip) {
+        long trace = engine.trace(ip);
+        stats.record(trace);
+        return LookupStats.portOf(trace);
+    }
+
+    @Override
+    public long trace(int ip) {
+        return engine.trace(ip);
+    }
+
+    @Override
+    public LookupEngine copy() {
+        throw new UnsupportedOperationException("the recorder is put in front of a new copy instead");
+    }
+
+    @Override
+    public void addTableBytes(Map<String, Long> tables) {
+        engine.addTableBytes(tables);
+    }
+}
@@ -0,0 +1,98 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Straightforward longest prefix matcher to check the other lookup structures
+ * against.
+ * <p>
+ * The routes of every prefix length are kept in a sorted array, and a lookup
+ * binary searches the lengths from longest to shortest. It shares no code with
+ * the backends of {@link LongestPrefixMatcher}, so a bug in one of them cannot
+ * hide in both, and it is meant to be obviously correct rather than fast.
+ */
+public class ReferenceMatcher {
+    // routes per prefix length while they are added, prefix to port
+    private final Map<Integer, Integer>[] routes;
+
+    // sorted prefixes per length with their ports, built by finalizeRoutes; the
+    // prefixes have their sign bit flipped so that signed order is address order
+    private final int[][] prefixes = new int[33][];
+    private final int[][] ports = new int[33][];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ReferenceMatcher() {
+        routes = new Map[33];
+        for (int i = 0; i < routes.length; i++) {
+            routes[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Adds a route, replacing the port of an earlier route with the same prefix
+     *
+     * @param ip           The IP the block starts at in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     * @param portNumber   The port number the IP block should route to
+     */
+    public void addRoute(int ip, byte prefixLength, int portNumber) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Prefix length out of range: " + prefixLength);
+        }
+        routes[prefixLength].put(ip & mask(prefixLength), portNumber);
+    }
+
+    /**
+     * Sorts the routes, called after all routes have been added and before lookups
+     */
+    public void finalizeRoutes() {
+        for (int length = 0; length <= 32; length++) {
+            long[] entries = new long[routes[length].size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> route : routes[length].entrySet()) {
+                entries[i++] = (long) (route.getKey() ^ Integer.MIN_VALUE) << 32 | route.getValue() & 0xffffffffL;
+            }
+            Arrays.sort(entries);
+
+            prefixes[length] = new int[entries.length];
+            ports[length] = new int[entries.length];
+            for (i = 0; i < entries.length; i++) {
+                prefixes[length][i] = (int) (entries[i] >> 32);
+                ports[length][i] = (int) entries[i];
+            }
+        }
+    }
+
+    /**
+     * Looks up an IP address in the routing table
+     *
+     * @param ip The IP address to be looked up in integer representation
+     * @return The port number this IP maps to, -1 if there is no match
+     */
+    public int lookup(int ip) {
+        for (int length = 32; length >= 0; length--) {
+            int index = Arrays.binarySearch(prefixes[length], (ip & mask(length)) ^ Integer.MIN_VALUE);
+            if (index >= 0) {
+                return ports[length][index];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of distinct routes
+     */
+    public int size() {
+        int size = 0;
+        for (Map<Integer, Integer> length : routes) {
+            size += length.size();
+        }
+        return size;
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << 32 - prefixLength;
+    }
+}
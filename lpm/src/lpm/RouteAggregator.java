@@ -0,0 +1,175 @@
+package lpm;
+
+import java.util.Arrays;
+
+/**
+ * Shrinks a routing table without changing the result of any lookup, after the
+ * Optimal Routing Table Constructor (Draves et al., INFOCOM 1999).
+ * <p>
+ * The routes are put in a binary trie, which is treated as if every node had either
+ * zero or two children, the missing ones being leaves with the port of the longest
+ * route above them. Bottom-up, every node gets the set of ports its subtree could be
+ * covered with: the intersection of the sets of its children, or their union if they
+ * have nothing in common. Top-down, a node then only needs a route if the port it
+ * inherits is not in its set. This merges siblings with the same port and drops
+ * routes that repeat the port of their parent.
+ * <p>
+ * Unlike the original algorithm, addresses without a route are never covered by an
+ * aggregate, as the backends have no way to store a route to "no match". Subtrees
+ * containing such addresses are only aggregated below the uncovered parts.
+ */
+class RouteAggregator {
+    // sets of ports per trie node: a port if the set has a single element, otherwise
+    // a reference (-2 - offset) to the size and sorted elements of the set in the pool
+    private final int[] sets;
+    private int[] pool = new int[1024];
+    private int poolSize = 0;
+
+    private final BinaryTrie trie;
+    private final LongestPrefixMatcher aggregated;
+
+    private RouteAggregator(LongestPrefixMatcher routes, Backend backend) {
+        trie = new BinaryTrie(routes);
+        sets = new int[trie.size()];
+        aggregated = new LongestPrefixMatcher(backend);
+    }
+
+    /**
+     * Computes the smallest equivalent table for the routes of a matcher
+     *
+     * @param routes  The matcher providing the routes
+     * @param backend The backend of the matcher
+     * @return A matcher holding the aggregated routes, which are not finalized yet
+     */
+    static LongestPrefixMatcher aggregate(LongestPrefixMatcher routes, Backend backend) {
+        RouteAggregator aggregator = new RouteAggregator(routes, backend);
+        aggregator.computeSets(0, -1);
+        aggregator.assign(0, 0, 0, -1, -1);
+        return aggregator.aggregated;
+    }
+
+    /**
+     * Computes the port sets of a subtree, bottom-up
+     *
+     * @param node      The trie node at the root of the subtree
+     * @param inherited The port of the longest route above the node, -1 if there is none
+     * @return The port set of the node
+     */
+    private int computeSets(int node, int inherited) {
+        int port = trie.port(node) != -1 ? trie.port(node) : inherited;
+        if (trie.isLeaf(node)) {
+            sets[node] = port;
+            return port;
+        }
+
+        int left = trie.child(node, 0);
+        int right = trie.child(node, 1);
+        int leftSet = left != BinaryTrie.NONE ? computeSets(left, port) : port;
+        int rightSet = right != BinaryTrie.NONE ? computeSets(right, port) : port;
+        sets[node] = merge(leftSet, rightSet);
+        return sets[node];
+    }
+
+    /**
+     * Chooses the routes of a subtree, top-down
+     *
+     * @param node      The trie node at the root of the subtree, NONE for a missing child
+     * @param ip        The address bits leading to the node
+     * @param depth     The number of address bits above the node
+     * @param inherited The port of the longest original route above the node
+     * @param chosen    The port of the longest aggregated route above the node
+     */
+    private void assign(int node, int ip, int depth, int inherited, int chosen) {
+        // the root is node 0 as well, so only nodes below it can be missing
+        boolean missing = depth > 0 && node == BinaryTrie.NONE;
+        int port = !missing && trie.port(node) != -1 ? trie.port(node) : inherited;
+        int set = missing ? port : sets[node];
+
+        if (!contains(set, chosen)) {
+            // uncovered addresses absorb every set they are part of, so this is never -1
+            chosen = set >= -1 ? set : pool[-2 - set + 1];
+            aggregated.addRoute(ip, (byte) depth, chosen);
+        }
+
+        if (missing || trie.isLeaf(node)) {
+            return;
+        }
+        assign(trie.child(node, 0), ip, depth + 1, port, chosen);
+        assign(trie.child(node, 1), ip | 1 << 31 - depth, depth + 1, port, chosen);
+    }
+
+    /**
+     * Merges the sets of two children: their intersection, or their union if that is
+     * empty. A set with -1 covers addresses without a route and absorbs the other set.
+     */
+    private int merge(int a, int b) {
+        if (contains(a, -1) || contains(b, -1)) {
+            return -1;
+        }
+
+        int[] merged = new int[size(a) + size(b)];
+        int count = 0;
+        for (int i = 0, j = 0; i < size(a) && j < size(b); ) {
+            int x = element(a, i);
+            int y = element(b, j);
+            if (x == y) {
+                merged[count++] = x;
+            }
+            if (x <= y) {
+                i++;
+            }
+            if (y <= x) {
+                j++;
+            }
+        }
+
+        if (count == 0) {
+            int i = 0;
+            int j = 0;
+            while (i < size(a) || j < size(b)) {
+                if (j == size(b) || i < size(a) && element(a, i) < element(b, j)) {
+                    merged[count++] = element(a, i++);
+                } else {
+                    merged[count++] = element(b, j++);
+                }
+            }
+        }
+
+        if (count == 1) {
+            return merged[0];
+        }
+        if (poolSize + count + 1 > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + count + 1));
+        }
+        int offset = poolSize;
+        pool[poolSize++] = count;
+        System.arraycopy(merged, 0, pool, poolSize, count);
+        poolSize += count;
+        return -2 - offset;
+    }
+
+    /**
+     * Gets the number of ports in a set
+     */
+    private int size(int set) {
+        return set >= -1 ? 1 : pool[-2 - set];
+    }
+
+    /**
+     * Gets a port of a set, in ascending order
+     */
+    private int element(int set, int index) {
+        return set >= -1 ? set : pool[-2 - set + 1 + index];
+    }
+
+    /**
+     * Checks whether a set contains a port
+     */
+    private boolean contains(int set, int port) {
+        if (set >= -1) {
+            return set == port;
+        }
+        int offset = -2 - set + 1;
+        return Arrays.binarySearch(pool, offset, offset + pool[-2 - set], port) >= 0;
+    }
+}
@@ -0,0 +1,16 @@
+package lpm;
+
+/**
+ * Receives the routes stored in a {@link LongestPrefixMatcher}.
+ */
+@FunctionalInterface
+interface RouteConsumer {
+    /**
+     * Accepts a single route
+     *
+     * @param ip           The network address of the route (host bits are zero)
+     * @param prefixLength The number of bits indicating the network part
+     * @param portNumber   The port number the IP block routes to
+     */
+    void accept(int ip, int prefixLength, int portNumber);
+}
@@ -0,0 +1,106 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * The routes of a {@link LongestPrefixMatcher} split by the top 8 bits of their
+ * address, so that lookup structures can build the parts of the address space in
+ * parallel.
+ * <p>
+ * Routes of at least 8 bits fall into exactly one partition. The few shorter ones
+ * cover several partitions and are kept apart; every partition applies those that
+ * cover it, clipped to its own addresses.
+ */
+class RoutePartitions {
+    static final int BITS = 8;
+    static final int COUNT = 1 << BITS;
+
+    // routes of at least BITS bits, grouped by partition; partition p holds the
+    // routes from starts[p] to starts[p + 1]
+    private final int[] ips;
+    private final byte[] prefixLengths;
+    private final int[] ports;
+    private final int[] starts = new int[COUNT + 1];
+
+    // routes shorter than BITS bits
+    private int[] shortIps = new int[0];
+    private byte[] shortPrefixLengths = new byte[0];
+    private int[] shortPorts = new int[0];
+
+    /**
+     * Splits the routes of the given matcher
+     *
+     * @param routes The matcher providing the routes
+     */
+    RoutePartitions(LongestPrefixMatcher routes) {
+        // count the routes of every partition first, so they can be placed in one array
+        int[] counts = new int[COUNT];
+        routes.forEachRoute((ip, prefixLength, portNumber) -> {
+            if (prefixLength >= BITS) {
+                counts[ip >>> 32 - BITS]++;
+            }
+        });
+        for (int p = 0; p < COUNT; p++) {
+            starts[p + 1] = starts[p] + counts[p];
+        }
+
+        ips = new int[starts[COUNT]];
+        prefixLengths = new byte[starts[COUNT]];
+        ports = new int[starts[COUNT]];
+        int[] next = Arrays.copyOf(starts, COUNT);
+        routes.forEachRoute((ip, prefixLength, portNumber) -> {
+            if (prefixLength >= BITS) {
+                int i = next[ip >>> 32 - BITS]++;
+                ips[i] = ip;
+                prefixLengths[i] = (byte) prefixLength;
+                ports[i] = portNumber;
+            } else {
+                int i = shortIps.length;
+                shortIps = Arrays.copyOf(shortIps, i + 1);
+                shortPrefixLengths = Arrays.copyOf(shortPrefixLengths, i + 1);
+                shortPorts = Arrays.copyOf(shortPorts, i + 1);
+                shortIps[i] = ip;
+                shortPrefixLengths[i] = (byte) prefixLength;
+                shortPorts[i] = portNumber;
+            }
+        });
+    }
+
+    /**
+     * Runs a task for every partition on the common fork-join pool and waits for all of them
+     *
+     * @param task The task, receiving the index of the partition
+     */
+    static void forEachPartition(IntConsumer task) {
+        IntStream.range(0, COUNT).parallel().forEach(task);
+    }
+
+    /**
+     * Passes the routes shorter than BITS that cover a partition to a consumer
+     *
+     * @param partition The index of the partition
+     * @param consumer  The consumer receiving the routes
+     */
+    void forEachShortRoute(int partition, RouteConsumer consumer) {
+        for (int i = 0; i < shortIps.length; i++) {
+            int prefixLength = shortPrefixLengths[i];
+            if (prefixLength == 0 || shortIps[i] >>> 32 - prefixLength == partition >>> BITS - prefixLength) {
+                consumer.accept(shortIps[i], prefixLength, shortPorts[i]);
+            }
+        }
+    }
+
+    /**
+     * Passes the routes of at least BITS bits inside a partition to a consumer
+     *
+     * @param partition The index of the partition
+     * @param consumer  The consumer receiving the routes
+     */
+    void forEachRoute(int partition, RouteConsumer consumer) {
+        for (int i = starts[partition]; i < starts[partition + 1]; i++) {
+            consumer.accept(ips[i], prefixLengths[i], ports[i]);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package lpm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary image of a finalized matcher, which can be memory-mapped to serve lookups
+ * without parsing or adding any routes.
+ * <p>
+ * The image starts with a 32-byte header: a magic number, the format version, the
+ * number of second and third level slots, the number of routes, a reserved int and
+ * the CRC32 of everything after the header. It is followed by the three levels of a
+ * {@link MultibitTrie} and by the routes as (ip, prefix length, port) triples. All
+ * values are big-endian ints, so the levels can be read in place as int buffers.
+ */
+class Snapshot {
+    private static final int MAGIC = 0x4c504d53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int LEVEL1_SIZE = 1 << 16;
+
+    // lookup structure reading the mapped levels
+    final LookupEngine engine;
+
+    // mapped routes, three ints per route
+    final IntBuffer routes;
+
+    private Snapshot(LookupEngine engine, IntBuffer routes) {
+        this.engine = engine;
+        this.routes = routes;
+    }
+
+    /**
+     * Writes an image of the routes of a matcher. The image is written to a temporary
+     * file first, so a crash never leaves a partial image behind.
+     *
+     * @param matcher The matcher providing the routes
+     * @param file    The file to write the image to
+     */
+    static void write(LongestPrefixMatcher matcher, File file) throws IOException {
+        int[][] levels = new MultibitTrie(matcher).levels();
+
+        // the routes are collected first, as the consumer cannot throw an IOException
+        int[] routeCount = {0};
+        matcher.forEachRoute((ip, prefixLength, portNumber) -> routeCount[0]++);
+        int[] routes = new int[3 * routeCount[0]];
+        int[] next = {0};
+        matcher.forEachRoute((ip, prefixLength, portNumber) -> {
+            routes[next[0]++] = ip;
+            routes[next[0]++] = prefixLength;
+            routes[next[0]++] = portNumber;
+        });
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 checksum = new CRC32();
+            channel.position(HEADER_SIZE);
+
+            // not closed, as that would close the channel before the header is written
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), checksum)));
+            for (int[] level : levels) {
+                for (int slot : level) {
+                    out.writeInt(slot);
+                }
+            }
+            for (int value : routes) {
+                out.writeInt(value);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(levels[1].length).putInt(levels[2].length)
+                    .putInt(routeCount[0]).putInt(0)
+                    .putLong(checksum.getValue())
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps an image read-only into memory. Only the header is read unless the checksum
+     * is verified; the rest is paged in as lookups touch it.
+     *
+     * @param file           The file holding the image
+     * @param verifyChecksum Whether to check the checksum, which reads the whole image
+     * @return The mapped lookup structure and routes
+     * @throws IOException If the file cannot be read or does not hold a valid image
+     */
+    static Snapshot map(File file, boolean verifyChecksum) throws IOException {
+        ByteBuffer image;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot image: " + file);
+            }
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (image.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot image: " + file);
+        }
+        if (image.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + image.getInt(4) + " in " + file);
+        }
+        int level2Size = image.getInt(8);
+        int level3Size = image.getInt(12);
+        int routeCount = image.getInt(16);
+        long size = HEADER_SIZE + 4L * (LEVEL1_SIZE + (long) level2Size + level3Size + 3L * routeCount);
+        if (level2Size < 0 || level3Size < 0 || routeCount < 0 || size != image.capacity()) {
+            throw new IOException("Truncated snapshot image: " + file);
+        }
+
+        if (verifyChecksum) {
+            CRC32 checksum = new CRC32();
+            checksum.update(image.duplicate().position(HEADER_SIZE));
+            if (checksum.getValue() != image.getLong(24)) {
+                throw new IOException("Checksum mismatch in snapshot image: " + file);
+            }
+        }
+
+        IntBuffer body = image.position(HEADER_SIZE).slice().asIntBuffer();
+        LookupEngine engine = new BufferMultibitTrie(
+                slice(body, 0, LEVEL1_SIZE),
+                slice(body, LEVEL1_SIZE, level2Size),
+                slice(body, LEVEL1_SIZE + level2Size, level3Size));
+        IntBuffer routes = slice(body, LEVEL1_SIZE + level2Size + level3Size, 3 * routeCount);
+        return new Snapshot(engine, routes);
+    }
+
+    /**
+     * Gets a view of part of an int buffer
+     */
+    private static IntBuffer slice(IntBuffer buffer, int from, int length) {
+        return buffer.duplicate().position(from).limit(from + length).slice();
+    }
+}
@@ -0,0 +1,456 @@
+package lpm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Longest prefix matcher for many VRFs (isolated routing tables) that are mostly
+ * identical.
+ * <p>
+ * Every VRF is a persistent trie with strides of 8 bits, made of immutable blocks
+ * that tables share freely. A block holds the routes ending within its 8 bits,
+ * expanded over its 256 slots, and references to the blocks of longer routes. A
+ * lookup walks at most four blocks and keeps the last port it saw on the way, so a
+ * block never repeats the routes above it. A route change copies only the blocks on
+ * its path; a VRF created from another one shares all of its blocks until either
+ * changes. Memory therefore grows with the number of differences between tables,
+ * not with the number of VRFs.
+ * <p>
+ * Lookups can run concurrently with route changes: changes build new blocks and
+ * then replace the set of roots atomically, like in {@link LongestPrefixMatcher}.
+ */
+public class VrfMatcher {
+    private static final int STRIDE = 8;
+    private static final int BLOCK_SIZE = 1 << STRIDE;
+
+    // slot value for addresses that no route of the block covers
+    private static final int NONE = Integer.MIN_VALUE;
+
+    // the table of a VRF without routes, never changed in place
+    private static final Block EMPTY = new Block(new Object());
+
+    // root block of every VRF, indexed by VRF id, null for ids without a VRF;
+    // replaced as a whole and never modified once assigned
+    private volatile Block[] roots = new Block[0];
+
+    // private copy of the roots with the changes that have not been published yet
+    private Block[] draft;
+
+    // blocks of this generation were created since the last publish or VRF copy,
+    // so they are neither visible to lookups nor shared and can be changed in place;
+    // a new object starts a generation, so no earlier generation ever matches again
+    private Object generation = new Object();
+
+    // number of nested updateRoutes calls, changes are published when the outermost one ends
+    private int batchDepth = 0;
+
+    /**
+     * Looks up an IP address in the routing table of a VRF
+     *
+     * @param vrfId The VRF to look the address up in
+     * @param ip    The IP address to be looked up in integer representation
+     * @return The port number this IP maps to, -1 if there is no match
+     */
+    public int lookup(int vrfId, int ip) {
+        Block block = root(roots, vrfId);
+        int best = -1;
+        for (int shift = 32 - STRIDE; ; shift -= STRIDE) {
+            int index = ip >>> shift & BLOCK_SIZE - 1;
+            int portNumber = block.ports[index];
+            if (portNumber != NONE) {
+                best = portNumber;
+            }
+            if (block.children == null || (block = block.children[index]) == null) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Creates a VRF without routes
+     *
+     * @param vrfId The id of the new VRF, a small non-negative number
+     */
+    public synchronized void createVrf(int vrfId) {
+        setRoot(vrfId, EMPTY, true);
+    }
+
+    /**
+     * Creates a VRF with the same routes as an existing one. Both share all of
+     * their memory until their routes change.
+     *
+     * @param vrfId     The id of the new VRF, a small non-negative number
+     * @param baseVrfId The VRF to copy the routes from
+     */
+    public synchronized void createVrf(int vrfId, int baseVrfId) {
+        setRoot(vrfId, root(draftRoots(), baseVrfId), true);
+
+        // blocks created earlier in this group are now shared by both VRFs, so
+        // they must be copied like published blocks before they are changed
+        generation = new Object();
+    }
+
+    /**
+     * Removes a VRF and all of its routes
+     *
+     * @param vrfId The VRF to remove
+     */
+    public synchronized void deleteVrf(int vrfId) {
+        root(draftRoots(), vrfId);
+        setRoot(vrfId, null, false);
+    }
+
+    /**
+     * Adds a route to a VRF, or changes the port of an existing route
+     *
+     * @param vrfId        The VRF to add the route to
+     * @param ip           The IP the block starts at in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     * @param portNumber   The port number the IP block should route to
+     */
+    public synchronized void addRoute(int vrfId, int ip, byte prefixLength, int portNumber) {
+        checkPrefixLength(prefixLength);
+        if (portNumber == NONE) {
+            throw new IllegalArgumentException("Invalid port number: " + portNumber);
+        }
+        Block[] current = draftRoots();
+        current[vrfId] = add(root(current, vrfId), 0, ip, prefixLength, portNumber);
+        publishUnlessBatched();
+    }
+
+    /**
+     * Withdraws a route from a VRF
+     *
+     * @param vrfId        The VRF to remove the route from
+     * @param ip           The IP the block starts at in integer representation
+     * @param prefixLength The number of bits indicating the network part
+     * @return Whether the route existed
+     */
+    public synchronized boolean removeRoute(int vrfId, int ip, byte prefixLength) {
+        checkPrefixLength(prefixLength);
+        Block[] current = draftRoots();
+        Block root = root(current, vrfId);
+        if (!contains(root, ip, prefixLength)) {
+            return false;
+        }
+
+        Block updated = remove(root, 0, ip, prefixLength);
+        current[vrfId] = updated != null ? updated : EMPTY;
+        publishUnlessBatched();
+        return true;
+    }
+
+    /**
+     * Applies a group of route changes, which become visible to lookups together
+     * once all of them are done. Blocks changed more than once in the group are
+     * only copied once, which matters when loading full tables.
+     *
+     * @param changes The calls to createVrf, deleteVrf, addRoute and removeRoute to group
+     */
+    public synchronized void updateRoutes(Runnable changes) {
+        batchDepth++;
+        try {
+            changes.run();
+        } finally {
+            batchDepth--;
+            publishUnlessBatched();
+        }
+    }
+
+    /**
+     * Gets the memory retained by the tables of all VRFs, counting shared blocks once
+     *
+     * @return The number of bytes, not counting object headers
+     */
+    public synchronized long getTableBytes() {
+        Set<Block> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        for (Block root : roots) {
+            if (root != null) {
+                bytes += bytes(root, seen);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds a route below a block, copying the blocks on its path that are
+     * visible to lookups
+     *
+     * @param block The block to add the route to, null if it does not exist yet
+     * @param level The number of strides above the block
+     * @return The changed block
+     */
+    private Block add(Block block, int level, int ip, int prefixLength, int portNumber) {
+        Block changed = writable(block);
+        int shift = 32 - STRIDE * (level + 1);
+
+        if (prefixLength <= STRIDE * (level + 1)) {
+            // the route ends within this block
+            int localLength = prefixLength - STRIDE * level;
+            int localPrefix = localLength == 0 ? 0 : (ip >>> shift & BLOCK_SIZE - 1) >>> STRIDE - localLength;
+            changed.putRoute(localLength, localPrefix, portNumber);
+            changed.expand(localLength, localPrefix);
+            return changed;
+        }
+
+        int index = ip >>> shift & BLOCK_SIZE - 1;
+        Block child = changed.children != null ? changed.children[index] : null;
+        changed.setChild(index, add(child, level + 1, ip, prefixLength, portNumber));
+        return changed;
+    }
+
+    /**
+     * Removes a route below a block, copying the blocks on its path that are
+     * visible to lookups. The route must exist.
+     *
+     * @param block The block holding the route or one of its ancestors
+     * @param level The number of strides above the block
+     * @return The changed block, or null if it has no routes left
+     */
+    private Block remove(Block block, int level, int ip, int prefixLength) {
+        Block changed = writable(block);
+        int shift = 32 - STRIDE * (level + 1);
+
+        if (prefixLength <= STRIDE * (level + 1)) {
+            int localLength = prefixLength - STRIDE * level;
+            int localPrefix = localLength == 0 ? 0 : (ip >>> shift & BLOCK_SIZE - 1) >>> STRIDE - localLength;
+            changed.removeRoute(localLength, localPrefix);
+            changed.expand(localLength, localPrefix);
+        } else {
+            int index = ip >>> shift & BLOCK_SIZE - 1;
+            changed.setChild(index, remove(changed.children[index], level + 1, ip, prefixLength));
+        }
+        return changed.isEmpty() ? null : changed;
+    }
+
+    /**
+     * Checks whether a table has a route for a prefix
+     */
+    private static boolean contains(Block root, int ip, int prefixLength) {
+        Block block = root;
+        for (int level = 0; block != null; level++) {
+            int shift = 32 - STRIDE * (level + 1);
+            if (prefixLength <= STRIDE * (level + 1)) {
+                int localLength = prefixLength - STRIDE * level;
+                int localPrefix = localLength == 0 ? 0 : (ip >>> shift & BLOCK_SIZE - 1) >>> STRIDE - localLength;
+                return block.findRoute(localLength, localPrefix) >= 0;
+            }
+            block = block.children != null ? block.children[ip >>> shift & BLOCK_SIZE - 1] : null;
+        }
+        return false;
+    }
+
+    /**
+     * Gets a block that can be changed in place: the block itself if it was created
+     * since the last publish, otherwise a copy of it
+     */
+    private Block writable(Block block) {
+        if (block == null) {
+            return new Block(generation);
+        }
+        return block.generation == generation ? block : new Block(block, generation);
+    }
+
+    /**
+     * Gets the root block of a VRF
+     *
+     * @throws IllegalArgumentException If the VRF does not exist
+     */
+    private static Block root(Block[] roots, int vrfId) {
+        if (vrfId < 0 || vrfId >= roots.length || roots[vrfId] == null) {
+            throw new IllegalArgumentException("Unknown VRF: " + vrfId);
+        }
+        return roots[vrfId];
+    }
+
+    /**
+     * Sets the root block of a VRF in the draft and publishes it
+     *
+     * @param create Whether the VRF is created, which requires that it does not exist yet
+     */
+    private void setRoot(int vrfId, Block root, boolean create) {
+        if (vrfId < 0) {
+            throw new IllegalArgumentException("Invalid VRF id: " + vrfId);
+        }
+        Block[] current = draftRoots();
+        if (create && vrfId < current.length && current[vrfId] != null) {
+            throw new IllegalArgumentException("VRF already exists: " + vrfId);
+        }
+        if (vrfId >= current.length) {
+            current = Arrays.copyOf(current, Math.max(vrfId + 1, 2 * current.length));
+            draft = current;
+        }
+        current[vrfId] = root;
+        publishUnlessBatched();
+    }
+
+    /**
+     * Gets the private copy of the roots, creating it on the first change
+     */
+    private Block[] draftRoots() {
+        if (draft == null) {
+            draft = roots.clone();
+        }
+        return draft;
+    }
+
+    /**
+     * Makes the pending changes visible to lookups, unless they are part of a group
+     */
+    private void publishUnlessBatched() {
+        if (batchDepth > 0 || draft == null) {
+            return;
+        }
+        roots = draft;
+        draft = null;
+        generation = new Object();
+    }
+
+    private static void checkPrefixLength(int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Prefix length out of range: " + prefixLength);
+        }
+    }
+
+    /**
+     * Counts the bytes of the blocks below a block that were not seen before
+     */
+    private static long bytes(Block block, Set<Block> seen) {
+        if (!seen.add(block)) {
+            return 0;
+        }
+        long bytes = 5L * BLOCK_SIZE + 8L * block.routes.length;
+        if (block.children != null) {
+            bytes += 4L * BLOCK_SIZE;
+            for (Block child : block.children) {
+                if (child != null) {
+                    bytes += bytes(child, seen);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Node of the trie, covering 8 bits of the address
+     */
+    private static class Block {
+        // the generation the block was created in
+        final Object generation;
+
+        // port of the longest route of this block covering each slot, NONE if there is none
+        final int[] ports;
+
+        // local length + 1 of that route, 0 if there is none
+        final byte[] lengths;
+
+        // blocks of the routes continuing below each slot, null if no slot has one
+        Block[] children;
+        int childCount;
+
+        // the routes ending in this block as (local length << 8 | local prefix) << 32 | port
+        long[] routes;
+        int routeCount;
+
+        Block(Object generation) {
+            this.generation = generation;
+            ports = new int[BLOCK_SIZE];
+            lengths = new byte[BLOCK_SIZE];
+            routes = new long[0];
+            Arrays.fill(ports, NONE);
+        }
+
+        Block(Block other, Object generation) {
+            this.generation = generation;
+            ports = other.ports.clone();
+            lengths = other.lengths.clone();
+            children = other.children != null ? other.children.clone() : null;
+            childCount = other.childCount;
+            routes = Arrays.copyOf(other.routes, other.routeCount);
+            routeCount = other.routeCount;
+        }
+
+        /**
+         * Gets the index of a route in the route list
+         *
+         * @return The index, or -1 if the block has no such route
+         */
+        int findRoute(int localLength, int localPrefix) {
+            int key = localLength << STRIDE | localPrefix;
+            for (int i = 0; i < routeCount; i++) {
+                if ((int) (routes[i] >>> 32) == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void putRoute(int localLength, int localPrefix, int portNumber) {
+            long route = (long) (localLength << STRIDE | localPrefix) << 32 | portNumber & 0xffffffffL;
+            int index = findRoute(localLength, localPrefix);
+            if (index >= 0) {
+                routes[index] = route;
+                return;
+            }
+            if (routeCount == routes.length) {
+                routes = Arrays.copyOf(routes, Math.max(4, 2 * routeCount));
+            }
+            routes[routeCount++] = route;
+        }
+
+        void removeRoute(int localLength, int localPrefix) {
+            int index = findRoute(localLength, localPrefix);
+            routes[index] = routes[--routeCount];
+        }
+
+        /**
+         * Recomputes the slots covered by a prefix from the routes of the block
+         */
+        void expand(int localLength, int localPrefix) {
+            int from = localPrefix << STRIDE - localLength;
+            int to = from + (1 << STRIDE - localLength);
+            for (int slot = from; slot < to; slot++) {
+                ports[slot] = NONE;
+                lengths[slot] = 0;
+            }
+
+            for (int i = 0; i < routeCount; i++) {
+                int key = (int) (routes[i] >>> 32);
+                int length = key >>> STRIDE;
+                int routeFrom = (key & BLOCK_SIZE - 1) << STRIDE - length;
+                int routeTo = routeFrom + (1 << STRIDE - length);
+                for (int slot = Math.max(from, routeFrom); slot < Math.min(to, routeTo); slot++) {
+                    if (lengths[slot] <= length) {
+                        ports[slot] = (int) routes[i];
+                        lengths[slot] = (byte) (length + 1);
+                    }
+                }
+            }
+        }
+
+        void setChild(int index, Block child) {
+            if (children == null) {
+                if (child == null) {
+                    return;
+                }
+                children = new Block[BLOCK_SIZE];
+            }
+            if (children[index] == null && child != null) {
+                childCount++;
+            } else if (children[index] != null && child == null) {
+                childCount--;
+            }
+            children[index] = child;
+            if (childCount == 0) {
+                children = null;
+            }
+        }
+
+        boolean isEmpty() {
+            return routeCount == 0 && childCount == 0;
+        }
+    }
+}
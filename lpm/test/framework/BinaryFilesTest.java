@@ -0,0 +1,217 @@
+package framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Differential test of {@link BinaryFiles}: every converted file must hold exactly
+ * the values of its text version, and a conversion that fails must leave neither a
+ * partial target nor its temporary file behind.
+ */
+public class BinaryFilesTest {
+    private static final int LINES = 20000;
+
+    private final Random random = new Random(6);
+    private final File directory;
+
+    private BinaryFilesTest(File directory) {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = Files.createTempDirectory("binary-files").toFile();
+        try {
+            BinaryFilesTest test = new BinaryFilesTest(directory);
+            test.testRoutes();
+            test.testInts();
+            test.testRoutes6();
+            test.testLookups6();
+            test.testFailedConversion();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+        System.out.println("BinaryFiles: OK");
+    }
+
+    private void testRoutes() throws IOException {
+        int[] ips = new int[LINES];
+        int[] lengths = new int[LINES];
+        int[] ports = new int[LINES];
+        File text = new File(directory, "routes.txt");
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int i = 0; i < LINES; i++) {
+                lengths[i] = random.nextInt(33);
+                ips[i] = lengths[i] == 0 ? 0 : random.nextInt() & -1 << 32 - lengths[i];
+                ports[i] = random.nextInt(Integer.MAX_VALUE);
+                out.print(Framework.ipToHuman(ips[i]) + "/" + lengths[i] + "\t" + ports[i] + "\n");
+            }
+        }
+
+        File binary = convert(text, "routes.bin", BinaryFiles::convertRoutes);
+        ByteBuffer records = single(BinaryFiles.map(binary, BinaryFiles.ROUTE_RECORD_SIZE));
+        check(records.remaining() == LINES * BinaryFiles.ROUTE_RECORD_SIZE, "size of the route file");
+        for (int i = 0; i < LINES; i++) {
+            check(records.getInt() == ips[i] && records.get() == lengths[i] && records.getInt() == ports[i],
+                    "route " + i + " differs from its text version");
+        }
+    }
+
+    /**
+     * Lookup and output files both hold one int per line
+     */
+    private void testInts() throws IOException {
+        int[] ips = new int[LINES];
+        int[] ports = new int[LINES];
+        File lookups = new File(directory, "lookup.txt");
+        File outputs = new File(directory, "expected_output.txt");
+        try (PrintWriter lookupOut = new PrintWriter(lookups); PrintWriter outputOut = new PrintWriter(outputs)) {
+            for (int i = 0; i < LINES; i++) {
+                ips[i] = random.nextInt();
+                ports[i] = i % 10 == 0 ? -1 : random.nextInt(Integer.MAX_VALUE);
+                lookupOut.print(Framework.ipToHuman(ips[i]) + "\n");
+                outputOut.print(ports[i] + "\n");
+            }
+        }
+
+        ByteBuffer lookupRecords = single(BinaryFiles.map(convert(lookups, "lookup.bin", BinaryFiles::convertLookups),
+                BinaryFiles.INT_RECORD_SIZE));
+        ByteBuffer outputRecords = single(BinaryFiles.map(convert(outputs, "output.bin", BinaryFiles::convertOutputs),
+                BinaryFiles.INT_RECORD_SIZE));
+        check(lookupRecords.remaining() == 4 * LINES && outputRecords.remaining() == 4 * LINES,
+                "size of the lookup and output files");
+        for (int i = 0; i < LINES; i++) {
+            check(lookupRecords.getInt() == ips[i], "lookup " + i + " differs from its text version");
+            check(outputRecords.getInt() == ports[i], "output " + i + " differs from its text version");
+        }
+    }
+
+    private void testRoutes6() throws IOException {
+        long[][] addresses = new long[LINES][];
+        int[] lengths = new int[LINES];
+        int[] ports = new int[LINES];
+        File text = new File(directory, "routes6.txt");
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int i = 0; i < LINES; i++) {
+                addresses[i] = randomAddress6(i);
+                lengths[i] = random.nextInt(129);
+                ports[i] = random.nextInt(Integer.MAX_VALUE);
+                out.print(toText6(addresses[i], i) + "/" + lengths[i] + "\t" + ports[i] + "\n");
+            }
+        }
+
+        File binary = convert(text, "routes6.bin", BinaryFiles::convertRoutes6);
+        ByteBuffer records = single(BinaryFiles.map(binary, BinaryFiles.ROUTE6_RECORD_SIZE));
+        check(records.remaining() == LINES * BinaryFiles.ROUTE6_RECORD_SIZE, "size of the IPv6 route file");
+        for (int i = 0; i < LINES; i++) {
+            check(records.getLong() == addresses[i][0] && records.getLong() == addresses[i][1]
+                    && records.get() == (byte) lengths[i] && records.getInt() == ports[i],
+                    "IPv6 route " + i + " differs from its text version");
+        }
+    }
+
+    private void testLookups6() throws IOException {
+        long[][] addresses = new long[LINES][];
+        File text = new File(directory, "lookup6.txt");
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int i = 0; i < LINES; i++) {
+                addresses[i] = randomAddress6(i);
+                out.print(toText6(addresses[i], i) + "\n");
+            }
+        }
+
+        File binary = convert(text, "lookup6.bin", BinaryFiles::convertLookups6);
+        ByteBuffer records = single(BinaryFiles.map(binary, BinaryFiles.IP6_RECORD_SIZE));
+        check(records.remaining() == LINES * BinaryFiles.IP6_RECORD_SIZE, "size of the IPv6 lookup file");
+        for (int i = 0; i < LINES; i++) {
+            check(records.getLong() == addresses[i][0] && records.getLong() == addresses[i][1],
+                    "IPv6 lookup " + i + " differs from its text version");
+        }
+    }
+
+    /**
+     * A conversion failing halfway must keep the previous binary file and remove its temporary file
+     */
+    private void testFailedConversion() throws IOException {
+        File text = new File(directory, "bad_routes.txt");
+        try (PrintWriter out = new PrintWriter(text)) {
+            for (int i = 0; i < LINES; i++) {
+                out.print("10.0.0.0/8\t1\n");
+            }
+            out.print("10.0.0.0/33\t1\n");
+        }
+
+        File binary = new File(directory, "bad_routes.bin");
+        Files.write(binary.toPath(), new byte[]{1, 2, 3});
+        try {
+            BinaryFiles.convertRoutes(text, binary);
+            throw new AssertionError("a /33 route was converted");
+        } catch (NumberFormatException expected) {
+            // the prefix length does not fit an IPv4 address
+        }
+        check(Files.readAllBytes(binary.toPath()).length == 3, "a failed conversion replaced the binary file");
+        check(!new File(directory, "bad_routes.bin.tmp").exists(), "a failed conversion left its temporary file");
+    }
+
+    private File convert(File text, String name, Converter converter) throws IOException {
+        File binary = new File(directory, name);
+        check(BinaryFiles.isOutdated(text, binary), name + " is up to date before the conversion");
+        converter.convert(text, binary);
+        text.setLastModified(binary.lastModified() - 1000);
+        check(!BinaryFiles.isOutdated(text, binary), name + " is outdated after the conversion");
+        check(!new File(directory, name + ".tmp").exists(), "the conversion left its temporary file");
+        return binary;
+    }
+
+    private static ByteBuffer single(List<ByteBuffer> buffers) {
+        check(buffers.size() == 1, "a small file was mapped into " + buffers.size() + " buffers");
+        return buffers.get(0);
+    }
+
+    /**
+     * Gets an IPv6 address; every fourth one has a run of zero groups so that it
+     * is written with "::"
+     */
+    private long[] randomAddress6(int line) {
+        long high = random.nextLong();
+        long low = random.nextLong();
+        if (line % 4 == 0) {
+            high &= 0xffffffff00000000L;
+            low &= 0x000000000000ffffL;
+        }
+        return new long[]{high, low};
+    }
+
+    private static String toText6(long[] address, int line) {
+        StringBuilder text = new StringBuilder();
+        for (int group = 0; group < 8; group++) {
+            long half = group < 4 ? address[0] : address[1];
+            int value = (int) (half >>> 48 - 16 * (group % 4)) & 0xffff;
+            if (line % 4 == 0 && group >= 2 && group <= 6) {
+                // groups 2 to 6 are zero, leave them out
+                if (group == 2) {
+                    text.append("::");
+                }
+                continue;
+            }
+            if (text.length() > 0 && text.charAt(text.length() - 1) != ':') {
+                text.append(':');
+            }
+            text.append(Integer.toHexString(value));
+        }
+        return text.toString();
+    }
+
+    private interface Converter {
+        void convert(File textFile, File binaryFile) throws IOException;
+    }
+}
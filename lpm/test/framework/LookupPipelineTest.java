@@ -0,0 +1,124 @@
+package framework;
+
+import lpm.Backend;
+import lpm.LongestPrefixMatcher;
+import lpm.ReferenceMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Differential test of {@link LookupPipeline} and {@link StageQueue}: the pipeline
+ * must accept the ports of a {@link ReferenceMatcher} for a file spanning many
+ * blocks and batches, and reject them once one of them is wrong. The queue must
+ * hand over every item in order and let a cancelled producer return.
+ */
+public class LookupPipelineTest {
+    private static final int ROUTES = 5000;
+
+    // not a multiple of the batch size, so the last batch is partial
+    private static final int LOOKUPS = 50001;
+
+    public static void main(String[] args) throws Exception {
+        testPipeline();
+        testQueueOrder();
+        testQueueCancel();
+        System.out.println("LookupPipeline: OK");
+    }
+
+    private static void testPipeline() throws IOException {
+        Random random = new Random(17);
+        LongestPrefixMatcher lpm = new LongestPrefixMatcher(Backend.MULTIBIT_TRIE);
+        ReferenceMatcher reference = new ReferenceMatcher();
+        for (int i = 0; i < ROUTES; i++) {
+            int prefixLength = 8 + random.nextInt(25);
+            int ip = random.nextInt() & -1 << 32 - prefixLength;
+            int portNumber = random.nextInt(64);
+            lpm.addRoute(ip, (byte) prefixLength, portNumber);
+            reference.addRoute(ip, (byte) prefixLength, portNumber);
+        }
+        lpm.finalizeRoutes();
+        reference.finalizeRoutes();
+
+        File directory = Files.createTempDirectory("pipeline").toFile();
+        File lookups = new File(directory, "lookup.txt");
+        File outputs = new File(directory, "expected_output.txt");
+        File wrongOutputs = new File(directory, "wrong_output.txt");
+        try (PrintWriter lookupOut = new PrintWriter(lookups);
+             PrintWriter outputOut = new PrintWriter(outputs);
+             PrintWriter wrongOut = new PrintWriter(wrongOutputs)) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                int ip = random.nextInt();
+                int portNumber = reference.lookup(ip);
+                lookupOut.print(Framework.ipToHuman(ip) + "\n");
+                outputOut.print(portNumber + "\n");
+                wrongOut.print((i == LOOKUPS - 2 ? portNumber + 1 : portNumber) + "\n");
+            }
+        }
+
+        try {
+            check(new LookupPipeline(lpm).run(lookups, outputs), "the pipeline rejected the reference ports");
+            check(!new LookupPipeline(lpm).run(lookups, wrongOutputs), "the pipeline accepted a wrong port");
+            try {
+                new LookupPipeline(lpm).run(lookups, new File(directory, "missing.txt"));
+                throw new AssertionError("the pipeline ran without an output file");
+            } catch (IOException expected) {
+                // the file cannot be opened
+            }
+        } finally {
+            lookups.delete();
+            outputs.delete();
+            wrongOutputs.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Passes many items through a small queue between two threads
+     */
+    private static void testQueueOrder() throws InterruptedException {
+        int items = 1_000_000;
+        StageQueue<Integer> queue = new StageQueue<>(4);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                queue.put(i);
+            }
+            queue.close();
+        });
+        producer.start();
+
+        int expected = 0;
+        for (Integer item = queue.take(); item != null; item = queue.take()) {
+            check(item == expected, "took " + item + " instead of " + expected);
+            expected++;
+        }
+        producer.join();
+        check(expected == items, "took " + expected + " items instead of " + items);
+    }
+
+    /**
+     * A producer waiting on a full queue must return once the consumer cancels it
+     */
+    private static void testQueueCancel() throws InterruptedException {
+        StageQueue<Integer> queue = new StageQueue<>(2);
+        boolean[] added = new boolean[3];
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < added.length; i++) {
+                added[i] = queue.put(i);
+            }
+        });
+        producer.start();
+
+        // the third item does not fit until the consumer takes one
+        Thread.sleep(100);
+        queue.cancel();
+        producer.join(10_000);
+        check(!producer.isAlive(), "the producer kept waiting on a cancelled queue");
+        check(added[0] && added[1] && !added[2], "an item was added to a full, cancelled queue");
+    }
+}
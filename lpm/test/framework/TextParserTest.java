@@ -0,0 +1,80 @@
+package framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static lpm.Checks.check;
+
+/**
+ * Tests of the number parsing of {@link TextParser}: the int range must be checked
+ * like Integer.parseInt does, prefix lengths must fit the address size, and a parser
+ * over a range of a file must stop at the end of the range.
+ */
+public class TextParserTest {
+    public static void main(String[] args) throws IOException {
+        check(parser("2147483647").nextInt() == Integer.MAX_VALUE, "largest int");
+        check(parser("-2147483648").nextInt() == Integer.MIN_VALUE, "smallest int");
+        check(parser("-1").nextInt() == -1, "negative int");
+        checkRejected("2147483648", "int overflow");
+        checkRejected("-2147483649", "negative int overflow");
+        checkRejected("99999999999999999999", "long overflow");
+
+        check(parser("255.0.0.1").nextIP() == 0xff000001, "IP");
+        try {
+            parser("4294967552.0.0.1").nextIP();
+            throw new AssertionError("IP part overflow was accepted");
+        } catch (NumberFormatException expected) {
+            // the part must not wrap around to a valid one
+        }
+
+        check(parser("32").nextPrefixLength(32) == 32, "longest IPv4 prefix");
+        check(parser("128").nextPrefixLength(128) == 128, "longest IPv6 prefix");
+        checkPrefixRejected("33", 32);
+        checkPrefixRejected("129", 128);
+        checkPrefixRejected("-1", 32);
+        checkPrefixRejected("256", 32);
+        testRange();
+        System.out.println("TextParser: OK");
+    }
+
+    private static TextParser parser(String text) {
+        return new TextParser(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void testRange() throws IOException {
+        Path file = Files.createTempFile("lines", ".txt");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Files.write(file, "1\n22\n333\n".getBytes(StandardCharsets.US_ASCII));
+            try (TextParser parser = new TextParser(channel, 2, 5)) {
+                check(parser.hasNext() && parser.nextInt() == 22, "first number of the range");
+                check(!parser.hasNext(), "the range ends before 333");
+            }
+            check(channel.isOpen(), "closing the parser closed the channel");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void checkRejected(String text, String description) throws IOException {
+        try {
+            int value = parser(text).nextInt();
+            throw new AssertionError(description + ": " + text + " was parsed as " + value);
+        } catch (NumberFormatException expected) {
+            // like Integer.parseInt
+        }
+    }
+
+    private static void checkPrefixRejected(String text, int maxLength) throws IOException {
+        try {
+            int length = parser(text).nextPrefixLength(maxLength);
+            throw new AssertionError("prefix length " + text + " was accepted as " + length);
+        } catch (NumberFormatException expected) {
+            // the length does not fit an address of maxLength bits
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package lpm;
+
+/**
+ * Assertions shared by the tests, which are plain main classes that fail by
+ * throwing an AssertionError.
+ */
+public final class Checks {
+    private Checks() {
+    }
+
+    /**
+     * Fails the test if a condition does not hold
+     *
+     * @param condition The condition to check
+     * @param message   The description of the failure
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package lpm;
+
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Tests of the flow cache in front of a {@link LongestPrefixMatcher}: caches of every
+ * size from a single entry up must give the same ports as the matcher without a
+ * cache, count their hits and evictions, and forget the entries that route changes
+ * cover, but only those.
+ */
+public class FlowCacheTest {
+    private static final int[] SIZES = {1, 2, 3, 4, 5, 7, 8, 9, 64, 1000};
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            testSize(size, new Random(size));
+        }
+        testInvalidation();
+        testPartialInvalidation();
+        System.out.println("FlowCache: OK");
+    }
+
+    /**
+     * Looks up a small set of popular addresses and some random ones through a
+     * cache of the given size, and compares the ports with an uncached matcher
+     */
+    private static void testSize(int size, Random random) {
+        LongestPrefixMatcher cached = new LongestPrefixMatcher(Backend.MULTIBIT_TRIE, size);
+        LongestPrefixMatcher uncached = new LongestPrefixMatcher(Backend.MULTIBIT_TRIE);
+        for (int i = 0; i < 500; i++) {
+            int prefixLength = 8 + random.nextInt(25);
+            int ip = random.nextInt() & -1 << 32 - prefixLength;
+            int portNumber = random.nextInt(32);
+            cached.addRoute(ip, (byte) prefixLength, portNumber);
+            uncached.addRoute(ip, (byte) prefixLength, portNumber);
+        }
+        cached.finalizeRoutes();
+        uncached.finalizeRoutes();
+
+        int[] popular = new int[8];
+        for (int i = 0; i < popular.length; i++) {
+            popular[i] = random.nextInt();
+        }
+        for (int i = 0; i < 20000; i++) {
+            int ip = random.nextBoolean() ? popular[random.nextInt(popular.length)] : random.nextInt();
+            int expected = uncached.lookup(ip);
+            int actual = cached.lookup(ip);
+            check(actual == expected, "cache of " + size + ": lookup of " + Integer.toHexString(ip)
+                    + " returned " + actual + " instead of " + expected);
+        }
+
+        FlowCacheStats stats = cached.getFlowCacheStats();
+        check(stats.hits() > 0, "cache of " + size + " has no hits");
+        check(stats.hits() + stats.misses() == 20000, "cache of " + size + " counted "
+                + (stats.hits() + stats.misses()) + " lookups instead of 20000");
+        check(stats.evictions() > 0, "cache of " + size + " has no evictions");
+    }
+
+    /**
+     * A cached port must not survive a change of the route it came from
+     */
+    private static void testInvalidation() {
+        LongestPrefixMatcher matcher = new LongestPrefixMatcher(Backend.DIR_24_8, 4);
+        matcher.addRoute(0x0a000000, (byte) 8, 1);
+        matcher.finalizeRoutes();
+        check(matcher.lookup(0x0a010101) == 1, "lookup before the route change");
+        check(matcher.lookup(0x0a010101) == 1, "cached lookup before the route change");
+
+        matcher.updateRoute(0x0a000000, (byte) 8, 2);
+        check(matcher.lookup(0x0a010101) == 2, "lookup returned the port from before the route change");
+        matcher.removeRoute(0x0a000000, (byte) 8);
+        check(matcher.lookup(0x0a010101) == -1, "lookup returned the port of a removed route");
+        check(matcher.getFlowCacheStats().invalidations() == 2, "route changes invalidated "
+                + matcher.getFlowCacheStats().invalidations() + " entries instead of 2");
+    }
+
+    /**
+     * A route change must only evict the cached addresses of the changed prefix,
+     * both for short prefixes, which are found by a pass over the cache, and for
+     * long ones, which are found address by address
+     */
+    private static void testPartialInvalidation() {
+        LongestPrefixMatcher matcher = new LongestPrefixMatcher(Backend.MULTIBIT_TRIE, 1024);
+        matcher.addRoute(0x0a000000, (byte) 8, 1);
+        matcher.addRoute(0x14000000, (byte) 8, 2);
+        matcher.finalizeRoutes();
+        int[] ips = {0x0a010101, 0x0a010102, 0x0a020304, 0x14010101, 0x14010102};
+        for (int ip : ips) {
+            matcher.lookup(ip);
+        }
+        FlowCacheStats stats = matcher.getFlowCacheStats();
+
+        matcher.updateRoute(0x0a010100, (byte) 30, 3);
+        check(stats.invalidations() == 2, "a /30 change invalidated " + stats.invalidations() + " entries instead of 2");
+        check(matcher.lookup(0x0a010101) == 3 && matcher.lookup(0x0a010102) == 3, "lookup in the changed /30");
+
+        long hits = stats.hits();
+        check(matcher.lookup(0x0a020304) == 1 && matcher.lookup(0x14010101) == 2, "lookup outside the changed /30");
+        check(stats.hits() == hits + 2, "a /30 change evicted addresses outside of it");
+
+        matcher.updateRoutes(() -> {
+            matcher.updateRoute(0x14000000, (byte) 8, 4);
+            matcher.removeRoute(0x0a010100, (byte) 30);
+        });
+        check(stats.invalidations() == 6, "a /8 and a /30 change invalidated " + (stats.invalidations() - 2)
+                + " entries instead of 4");
+        hits = stats.hits();
+        check(matcher.lookup(0x0a020304) == 1, "lookup outside the changed prefixes");
+        check(stats.hits() == hits + 1, "the changes evicted an address outside of them");
+        check(matcher.lookup(0x14010102) == 4 && matcher.lookup(0x0a010101) == 1, "lookup in the changed prefixes");
+    }
+}
@@ -0,0 +1,128 @@
+package lpm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Differential test of {@link LongestPrefixMatcher6} against a linear scan over all
+ * routes, before and after finalizeRoutes and after adding routes to a finalized
+ * matcher. The routes are clustered around a few bases and their lengths favour the
+ * boundary between the two halves of the address, where most mistakes hide.
+ */
+public class LongestPrefixMatcher6Test {
+    private static final int ROUTES = 2000;
+    private static final int LATE_ROUTES = 200;
+    private static final int LOOKUPS = 5000;
+
+    private static final long[][] BASES = {
+            {0x20010db800000000L, 0},
+            {0x20010db8abcd1234L, 0x5678000000000000L},
+            {0xfe80000000000000L, 0x0000000000000001L},
+            {0, 0},
+            {-1L, -1L},
+    };
+    private static final int[] FAVOURED_LENGTHS = {0, 1, 32, 48, 63, 64, 65, 96, 127, 128};
+
+    private final Random random = new Random(6);
+
+    // prefix (high, low and length) to port of every route added so far
+    private final Map<List<Long>, Integer> routes = new LinkedHashMap<>();
+
+    public static void main(String[] args) {
+        new LongestPrefixMatcher6Test().run();
+        System.out.println("LongestPrefixMatcher6: OK");
+    }
+
+    private void run() {
+        LongestPrefixMatcher6 matcher = new LongestPrefixMatcher6();
+        check(matcher.lookup(0x20010db800000000L, 1) == -1, "lookup without routes");
+
+        for (int i = 0; i < ROUTES; i++) {
+            addRandomRoute(matcher);
+        }
+        verify(matcher, "before finalizeRoutes");
+        matcher.finalizeRoutes();
+        verify(matcher, "after finalizeRoutes");
+
+        for (int i = 0; i < LATE_ROUTES; i++) {
+            if (i % 2 == 0 && !routes.isEmpty()) {
+                // replace the port of an existing route
+                List<Long> prefix = new ArrayList<>(routes.keySet()).get(random.nextInt(routes.size()));
+                int portNumber = random.nextInt(1000);
+                routes.put(prefix, portNumber);
+                matcher.addRoute(prefix.get(0), prefix.get(1), prefix.get(2).intValue(), portNumber);
+            } else {
+                addRandomRoute(matcher);
+            }
+        }
+        verify(matcher, "after adding routes to a finalized matcher");
+        matcher.finalizeRoutes();
+        verify(matcher, "after finalizing the added routes");
+    }
+
+    private void addRandomRoute(LongestPrefixMatcher6 matcher) {
+        int prefixLength = random.nextInt(3) == 0
+                ? FAVOURED_LENGTHS[random.nextInt(FAVOURED_LENGTHS.length)]
+                : random.nextInt(129);
+        long[] address = randomAddress();
+        long high = address[0] & highMask(prefixLength);
+        long low = address[1] & lowMask(prefixLength);
+        int portNumber = random.nextInt(1000);
+        routes.put(List.of(high, low, (long) prefixLength), portNumber);
+        matcher.addRoute(high, low, prefixLength, portNumber);
+    }
+
+    /**
+     * Gets an address near one of the bases, sharing a random number of leading bits with it
+     */
+    private long[] randomAddress() {
+        long[] base = BASES[random.nextInt(BASES.length)];
+        int shared = random.nextInt(129);
+        long high = random.nextLong();
+        long low = random.nextLong();
+        high = base[0] & highMask(shared) | high & ~highMask(shared);
+        low = base[1] & lowMask(shared) | low & ~lowMask(shared);
+        return new long[]{high, low};
+    }
+
+    private void verify(LongestPrefixMatcher6 matcher, String stage) {
+        for (int i = 0; i < LOOKUPS; i++) {
+            long[] address = i % 4 == 0 ? new long[]{random.nextLong(), random.nextLong()} : randomAddress();
+            int expected = referenceLookup(address[0], address[1]);
+            int actual = matcher.lookup(address[0], address[1]);
+            check(actual == expected, stage + ": lookup of " + Long.toHexString(address[0]) + ":"
+                    + Long.toHexString(address[1]) + " returned " + actual + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Looks up an address by comparing it with every route
+     */
+    private int referenceLookup(long high, long low) {
+        int bestLength = -1;
+        int portNumber = -1;
+        for (Map.Entry<List<Long>, Integer> route : routes.entrySet()) {
+            int prefixLength = route.getKey().get(2).intValue();
+            if (prefixLength > bestLength
+                    && (high & highMask(prefixLength)) == route.getKey().get(0)
+                    && (low & lowMask(prefixLength)) == route.getKey().get(1)) {
+                bestLength = prefixLength;
+                portNumber = route.getValue();
+            }
+        }
+        return portNumber;
+    }
+
+    private static long highMask(int prefixLength) {
+        return prefixLength == 0 ? 0 : prefixLength >= 64 ? -1L : -1L << 64 - prefixLength;
+    }
+
+    private static long lowMask(int prefixLength) {
+        return prefixLength <= 64 ? 0 : -1L << 128 - prefixLength;
+    }
+}
@@ -0,0 +1,359 @@
+package lpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Differential test of every {@link Backend} against a {@link ReferenceMatcher}.
+ * <p>
+ * Every backend gets the same random routes, clustered so that they nest, and has
+ * to answer single and batched lookups like the reference matcher after
+ * finalizeRoutes, after single and grouped route changes, with aggregation, while
+ * recording statistics and after a round trip through a snapshot image. Patching a
+ * copy of a lookup structure must leave the original unchanged, and a long series
+ * of patches must not keep growing the structure.
+ * <p>
+ * Usage: LongestPrefixMatcherTest [backend...], all backends by default
+ */
+public class LongestPrefixMatcherTest {
+    private static final int ROUTES = 2000;
+    private static final int CHANGES = 200;
+    private static final int GROUPS = 20;
+    private static final int LOOKUPS = 5000;
+    private static final int MAX_BATCH = 300;
+
+    // addresses the routes are clustered around
+    private static final int[] BASES = {0x0a000000, 0x0a0b0c00, 0xc0a80000, 0x7f000001, 0xffffff00};
+
+    private final Random random;
+
+    // routes the matcher should hold, (ip << 8 | prefix length) to port
+    private final Map<Long, Integer> routes = new LinkedHashMap<>();
+
+    private LongestPrefixMatcherTest(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Backend> backends = new ArrayList<>();
+        for (String arg : args) {
+            backends.add(Backend.valueOf(arg));
+        }
+        if (backends.isEmpty()) {
+            backends.addAll(List.of(Backend.values()));
+        }
+
+        for (Backend backend : backends) {
+            new LongestPrefixMatcherTest(backend.ordinal()).testBackend(backend, 0);
+            new LongestPrefixMatcherTest(backend.ordinal()).testBackend(backend, 1024);
+            new LongestPrefixMatcherTest(backend.ordinal()).testCopies(backend);
+            new LongestPrefixMatcherTest(backend.ordinal()).testManyChanges(backend);
+            System.out.println(backend + ": OK");
+        }
+    }
+
+    /**
+     * Runs all checks against one backend
+     *
+     * @param backend       The backend to test
+     * @param flowCacheSize The size of the flow cache in front of it, 0 for none
+     */
+    private void testBackend(Backend backend, int flowCacheSize) throws IOException {
+        String name = backend + (flowCacheSize > 0 ? " with flow cache" : "");
+        LongestPrefixMatcher matcher = new LongestPrefixMatcher(backend, flowCacheSize);
+        for (int i = 0; i < ROUTES; i++) {
+            addRandomRoute(matcher);
+        }
+        matcher.finalizeRoutes();
+        verify(matcher, name + " after finalizeRoutes");
+
+        for (int i = 1; i <= CHANGES; i++) {
+            changeRandomRoute(matcher);
+            if (i % 20 == 0) {
+                verify(matcher, name + " after " + i + " route changes");
+            }
+        }
+
+        for (int i = 0; i < GROUPS; i++) {
+            matcher.updateRoutes(() -> {
+                for (int j = 0; j < 25; j++) {
+                    changeRandomRoute(matcher);
+                }
+            });
+            verify(matcher, name + " after grouped route changes");
+        }
+
+        matcher.finalizeRoutes(true);
+        verify(matcher, name + " with aggregation");
+        for (int i = 0; i < 10; i++) {
+            changeRandomRoute(matcher);
+        }
+        verify(matcher, name + " after route changes with aggregation");
+        matcher.finalizeRoutes(false);
+
+        matcher.setStatsRecording(true);
+        verify(matcher, name + " while recording statistics");
+        check(matcher.getLookupStats().lookups() > 0, name + ": no lookups recorded");
+        matcher.setStatsRecording(false);
+        changeRandomRoute(matcher);
+        verify(matcher, name + " after recording statistics");
+
+        File file = File.createTempFile("lpm", ".snapshot");
+        try {
+            matcher.saveSnapshot(file);
+            LongestPrefixMatcher loaded = new LongestPrefixMatcher(backend, flowCacheSize);
+            loaded.loadSnapshot(file, true);
+            verify(loaded, name + " after loading a snapshot");
+
+            // recording wraps the mapped structure, so the routes are still not read
+            long routeBytes = loaded.getTableBytes().get("routes");
+            loaded.setStatsRecording(true);
+            check(loaded.getTableBytes().get("routes") == routeBytes, name + ": recording rebuilt the structure");
+            verify(loaded, name + " while recording statistics on a loaded snapshot");
+            loaded.setStatsRecording(false);
+
+            for (int i = 0; i < 20; i++) {
+                changeRandomRoute(loaded);
+            }
+            verify(loaded, name + " after route changes on a loaded snapshot");
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Patches a chain of copies of a lookup structure, and checks that every copy
+     * keeps answering lookups like it did before the next copy was patched
+     */
+    private void testCopies(Backend backend) {
+        LongestPrefixMatcher matcher = new LongestPrefixMatcher(backend);
+        for (int i = 0; i < ROUTES; i++) {
+            addRandomRoute(matcher);
+        }
+
+        int[] ips = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            ips[i] = i % 2 == 0 ? random.nextInt() : randomAddress();
+        }
+
+        List<LookupEngine> engines = new ArrayList<>();
+        List<int[]> results = new ArrayList<>();
+        LookupEngine engine = backend.build(matcher);
+        for (int generation = 0; generation < 5; generation++) {
+            int[] ports = new int[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                ports[i] = engine.lookup(ips[i]);
+            }
+            engines.add(engine);
+            results.add(ports);
+
+            engine = engine.copy();
+            for (int i = 0; i < 50; i++) {
+                if (!patchRandomRoute(engine)) {
+                    return;
+                }
+            }
+
+            for (int copy = 0; copy < engines.size(); copy++) {
+                for (int i = 0; i < LOOKUPS; i++) {
+                    int actual = engines.get(copy).lookup(ips[i]);
+                    check(actual == results.get(copy)[i], backend + ": patching copy " + (generation + 1)
+                            + " changed the lookup of " + toHuman(ips[i]) + " in copy " + copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the ports of the same long routes over and over, in small groups that are
+     * published one at a time, and checks that the lookup structure does not grow with
+     * the number of changes. The groups keep the flat DIR-24-8 table, which copies its
+     * whole primary table for every publication, fast enough to test.
+     */
+    private void testManyChanges(Backend backend) {
+        LongestPrefixMatcher matcher = new LongestPrefixMatcher(backend);
+        for (int i = 0; i < ROUTES; i++) {
+            addRandomRoute(matcher);
+        }
+        matcher.finalizeRoutes();
+        if (!backend.build(matcher).copy().update(0, 32, 0, 32)) {
+            // every change rebuilds the structure
+            return;
+        }
+
+        // routes longer than /24, which live in the blocks of the last level
+        List<Long> keys = new ArrayList<>();
+        for (long key : routes.keySet()) {
+            if ((key & 0xff) > 24) {
+                keys.add(key);
+            }
+        }
+        long before = totalBytes(matcher);
+        for (int group = 0; group < 100; group++) {
+            matcher.updateRoutes(() -> {
+                for (int i = 0; i < 100; i++) {
+                    long key = keys.get(random.nextInt(keys.size()));
+                    int portNumber = random.nextInt(64);
+                    routes.put(key, portNumber);
+                    matcher.updateRoute((int) (key >> 8), (byte) (key & 0xff), portNumber);
+                }
+            });
+        }
+        verify(matcher, backend + " after many route changes");
+
+        long after = totalBytes(matcher);
+        check(after <= before + (8 << 20), backend + ": " + (after - before)
+                + " bytes more after many route changes");
+    }
+
+    private static long totalBytes(LongestPrefixMatcher matcher) {
+        return matcher.getTableBytes().values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Adds, changes or removes a random route in the expected routes, and patches a
+     * lookup structure with the change like the matcher does
+     *
+     * @return Whether the structure could be patched
+     */
+    private boolean patchRandomRoute(LookupEngine engine) {
+        if (random.nextBoolean() && !routes.isEmpty()) {
+            List<Long> keys = new ArrayList<>(routes.keySet());
+            long key = keys.get(random.nextInt(keys.size()));
+            routes.remove(key);
+            int ip = (int) (key >> 8);
+            int prefixLength = (int) (key & 0xff);
+
+            // the addresses of the route now match the longest shorter route, if any
+            for (int length = prefixLength - 1; length >= 0; length--) {
+                Integer portNumber = routes.get(key(ip & mask(length), length));
+                if (portNumber != null) {
+                    return engine.update(ip, prefixLength, portNumber, length);
+                }
+            }
+            return engine.update(ip, prefixLength, -1, -1);
+        }
+
+        int prefixLength = random.nextInt(4) == 0 ? random.nextInt(33) : 16 + random.nextInt(17);
+        int ip = randomAddress() & mask(prefixLength);
+        int portNumber = random.nextInt(64);
+        routes.put(key(ip, prefixLength), portNumber);
+        return engine.update(ip, prefixLength, portNumber, prefixLength);
+    }
+
+    /**
+     * Adds a random route, or changes the port of an existing one
+     */
+    private void addRandomRoute(LongestPrefixMatcher matcher) {
+        int prefixLength = random.nextInt(4) == 0 ? random.nextInt(33) : 16 + random.nextInt(17);
+        int ip = randomAddress() & mask(prefixLength);
+        int portNumber = random.nextInt(64);
+        routes.put(key(ip, prefixLength), portNumber);
+
+        // the host bits of the address must not matter
+        int address = ip | random.nextInt() & ~mask(prefixLength);
+        if (random.nextBoolean()) {
+            matcher.addRoute(address, (byte) prefixLength, portNumber);
+        } else {
+            matcher.updateRoute(address, (byte) prefixLength, portNumber);
+        }
+    }
+
+    /**
+     * Withdraws a random route, withdraws a route that does not exist, or adds or
+     * changes a route
+     */
+    private void changeRandomRoute(LongestPrefixMatcher matcher) {
+        int kind = random.nextInt(3);
+        if (kind == 0 && !routes.isEmpty()) {
+            List<Long> keys = new ArrayList<>(routes.keySet());
+            long key = keys.get(random.nextInt(keys.size()));
+            routes.remove(key);
+            int prefixLength = (int) (key & 0xff);
+            int address = (int) (key >> 8) | random.nextInt() & ~mask(prefixLength);
+            check(matcher.removeRoute(address, (byte) prefixLength), "removeRoute missed an existing route");
+        } else if (kind == 1) {
+            int prefixLength = 16 + random.nextInt(17);
+            int ip = randomAddress() & mask(prefixLength);
+            if (!routes.containsKey(key(ip, prefixLength))) {
+                check(!matcher.removeRoute(ip, (byte) prefixLength), "removeRoute found a missing route");
+            }
+        } else {
+            addRandomRoute(matcher);
+        }
+    }
+
+    /**
+     * Compares single and batched lookups of the matcher with a reference matcher
+     * holding the expected routes
+     */
+    private void verify(LongestPrefixMatcher matcher, String state) {
+        ReferenceMatcher reference = new ReferenceMatcher();
+        routes.forEach((key, portNumber) -> reference.addRoute((int) (key >> 8), (byte) (key & 0xff), portNumber));
+        reference.finalizeRoutes();
+
+        int[] ips = new int[LOOKUPS];
+        List<Long> keys = new ArrayList<>(routes.keySet());
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (i % 4 == 0 || keys.isEmpty()) {
+                ips[i] = random.nextInt();
+            } else if (i % 4 == 1) {
+                ips[i] = randomAddress();
+            } else {
+                // the first and last addresses of a route and their neighbours
+                long key = keys.get(random.nextInt(keys.size()));
+                int ip = (int) (key >> 8);
+                int last = ip | ~mask((int) (key & 0xff));
+                ips[i] = (i % 4 == 2 ? ip : last) + random.nextInt(3) - 1;
+            }
+        }
+
+        for (int ip : ips) {
+            int expected = reference.lookup(ip);
+            int actual = matcher.lookup(ip);
+            check(expected == actual, state + ": lookup of " + toHuman(ip) + " returned " + actual
+                    + " instead of " + expected);
+        }
+
+        int[] batch = new int[MAX_BATCH];
+        int[] ports = new int[MAX_BATCH];
+        for (int offset = 0; offset < LOOKUPS; ) {
+            int count = Math.min(LOOKUPS - offset, 1 + random.nextInt(MAX_BATCH));
+            System.arraycopy(ips, offset, batch, 0, count);
+            matcher.lookupBatch(batch, ports, count);
+            for (int i = 0; i < count; i++) {
+                int expected = reference.lookup(batch[i]);
+                check(expected == ports[i], state + ": batched lookup of " + toHuman(batch[i]) + " returned "
+                        + ports[i] + " instead of " + expected);
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Gets an address near one of the cluster bases
+     */
+    private int randomAddress() {
+        int noise = random.nextInt() & random.nextInt() & random.nextInt();
+        return BASES[random.nextInt(BASES.length)] ^ noise;
+    }
+
+    private static long key(int ip, int prefixLength) {
+        return (long) ip << 8 | prefixLength;
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << 32 - prefixLength;
+    }
+
+    private static String toHuman(int ip) {
+        return (ip >> 24 & 0xff) + "." + (ip >> 16 & 0xff) + "." + (ip >> 8 & 0xff) + "." + (ip & 0xff);
+    }
+}
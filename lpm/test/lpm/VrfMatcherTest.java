@@ -0,0 +1,171 @@
+package lpm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static lpm.Checks.check;
+
+/**
+ * Tests of {@link VrfMatcher}: isolation of VRFs copied from each other, also within
+ * a group of changes and after many publications, and random changes to several VRFs compared with one
+ * {@link ReferenceMatcher} per VRF.
+ */
+public class VrfMatcherTest {
+    private static final int VRFS = 8;
+    private static final int OPERATIONS = 3000;
+
+    public static void main(String[] args) {
+        testCopyAfterAddInGroup();
+        testCopyAfterAddThenRemoveInGroup();
+        testManyGenerations();
+        testRandomChanges(new Random(20));
+        System.out.println("VrfMatcher: OK");
+    }
+
+    /**
+     * A route added to a copy must not change the VRF it was copied from, even if
+     * the copied blocks were created in the same group
+     */
+    private static void testCopyAfterAddInGroup() {
+        VrfMatcher matcher = new VrfMatcher();
+        matcher.updateRoutes(() -> {
+            matcher.createVrf(0);
+            matcher.addRoute(0, 0x0a000000, (byte) 8, 1);
+            matcher.createVrf(1, 0);
+            matcher.addRoute(1, 0x0a000000, (byte) 8, 2);
+        });
+        checkLookup(matcher, 0, 0x0a010203, 1);
+        checkLookup(matcher, 1, 0x0a010203, 2);
+    }
+
+    /**
+     * A route removed from a copy must stay in the VRF it was copied from, even if
+     * the copied blocks were created in the same group
+     */
+    private static void testCopyAfterAddThenRemoveInGroup() {
+        VrfMatcher matcher = new VrfMatcher();
+        matcher.createVrf(0);
+        matcher.addRoute(0, 0x0a000000, (byte) 8, 1);
+        matcher.updateRoutes(() -> {
+            matcher.addRoute(0, 0x0a000000, (byte) 16, 3);
+            matcher.createVrf(1, 0);
+            check(matcher.removeRoute(1, 0x0a000000, (byte) 16), "route to remove not found");
+        });
+        checkLookup(matcher, 0, 0x0a000001, 3);
+        checkLookup(matcher, 1, 0x0a000001, 1);
+    }
+
+    /**
+     * Publishes more changes than fit an unsigned short of generations, and checks
+     * that neither the shared empty table nor published blocks become writable again
+     */
+    private static void testManyGenerations() {
+        VrfMatcher matcher = new VrfMatcher();
+        matcher.createVrf(0);
+        matcher.createVrf(1);
+        matcher.addRoute(1, 0x0a000000, (byte) 8, 1);
+        matcher.createVrf(2, 1);
+        for (int i = 0; i < 1 << 17; i++) {
+            matcher.addRoute(1, 0x0b000000, (byte) 24, i & 0xff);
+            check(matcher.removeRoute(1, 0x0b000000, (byte) 24), "route to remove not found");
+        }
+
+        matcher.addRoute(1, 0x0a000000, (byte) 16, 2);
+        matcher.createVrf(3);
+        matcher.addRoute(3, 0x0c000000, (byte) 8, 3);
+        checkLookup(matcher, 0, 0x0c000001, -1);
+        checkLookup(matcher, 0, 0x0a000001, -1);
+        checkLookup(matcher, 1, 0x0a000001, 2);
+        checkLookup(matcher, 2, 0x0a000001, 1);
+        checkLookup(matcher, 3, 0x0c000001, 3);
+    }
+
+    /**
+     * Creates, copies and deletes VRFs and changes their routes at random, some of it
+     * in groups, and compares every VRF with a reference matcher after each step
+     */
+    private static void testRandomChanges(Random random) {
+        VrfMatcher matcher = new VrfMatcher();
+
+        // routes every VRF should hold, (ip << 8 | prefix length) to port
+        Map<Integer, Map<Long, Integer>> expected = new HashMap<>();
+
+        for (int operation = 0; operation < OPERATIONS; ) {
+            int groupSize = random.nextInt(4) == 0 ? 1 + random.nextInt(20) : 1;
+            List<Runnable> group = new ArrayList<>();
+            for (int i = 0; i < groupSize; i++, operation++) {
+                group.add(randomChange(random, matcher, expected));
+            }
+            if (groupSize == 1) {
+                group.get(0).run();
+            } else {
+                matcher.updateRoutes(() -> group.forEach(Runnable::run));
+            }
+
+            for (Map.Entry<Integer, Map<Long, Integer>> vrf : expected.entrySet()) {
+                ReferenceMatcher reference = new ReferenceMatcher();
+                vrf.getValue().forEach((key, portNumber) ->
+                        reference.addRoute((int) (key >> 8), (byte) (key & 0xff), portNumber));
+                reference.finalizeRoutes();
+                for (int i = 0; i < 50; i++) {
+                    int ip = randomAddress(random);
+                    checkLookup(matcher, vrf.getKey(), ip, reference.lookup(ip));
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks a random change and applies it to the expected routes right away, so
+     * that the changes of a group see each other
+     *
+     * @return The change to apply to the matcher
+     */
+    private static Runnable randomChange(Random random, VrfMatcher matcher, Map<Integer, Map<Long, Integer>> expected) {
+        int vrfId = random.nextInt(VRFS);
+        Map<Long, Integer> routes = expected.get(vrfId);
+        if (routes == null) {
+            if (!expected.isEmpty() && random.nextBoolean()) {
+                List<Integer> ids = new ArrayList<>(expected.keySet());
+                int baseId = ids.get(random.nextInt(ids.size()));
+                expected.put(vrfId, new LinkedHashMap<>(expected.get(baseId)));
+                return () -> matcher.createVrf(vrfId, baseId);
+            }
+            expected.put(vrfId, new LinkedHashMap<>());
+            return () -> matcher.createVrf(vrfId);
+        }
+
+        int kind = random.nextInt(20);
+        if (kind == 0) {
+            expected.remove(vrfId);
+            return () -> matcher.deleteVrf(vrfId);
+        }
+        if (kind < 7 && !routes.isEmpty()) {
+            List<Long> keys = new ArrayList<>(routes.keySet());
+            long key = keys.get(random.nextInt(keys.size()));
+            routes.remove(key);
+            return () -> check(matcher.removeRoute(vrfId, (int) (key >> 8), (byte) (key & 0xff)),
+                    "route to remove not found");
+        }
+
+        int prefixLength = random.nextInt(33);
+        int ip = randomAddress(random) & (prefixLength == 0 ? 0 : -1 << 32 - prefixLength);
+        int portNumber = random.nextInt(16);
+        routes.put((long) ip << 8 | prefixLength, portNumber);
+        return () -> matcher.addRoute(vrfId, ip, (byte) prefixLength, portNumber);
+    }
+
+    private static int randomAddress(Random random) {
+        return 0x0a000000 ^ random.nextInt() & random.nextInt() & random.nextInt();
+    }
+
+    private static void checkLookup(VrfMatcher matcher, int vrfId, int ip, int expected) {
+        int actual = matcher.lookup(vrfId, ip);
+        check(actual == expected, "lookup of " + Integer.toHexString(ip) + " in VRF " + vrfId
+                + " returned " + actual + " instead of " + expected);
+    }
+}